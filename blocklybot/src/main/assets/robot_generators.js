@@ -46,7 +46,7 @@ Blockly.JavaScript['robot_emote'] = function(block) {
 };
 
 Blockly.JavaScript['robot_stop'] = function(block) {
-  return 'BlocklyBot.Robot("stop");\n';
+  return 'BlocklyBot.Robot("stop",0, \'block_id_' + block.id + '\');\n';
 };
 
 Blockly.JavaScript['robot_repeat_internal'] = Blockly.JavaScript['controls_repeat'];
@@ -184,20 +184,8 @@ Blockly.JavaScript['wait_touch'] = function(block) {
 };
 
 
-/**
- * The generated code for robot blocks includes block ID strings.  These are useful for
- * highlighting the currently running block, but that behaviour is not supported in Android Blockly
- * as of May 2016.  This snippet generates the block code normally, then strips out the block IDs
- * for readability when displaying the code to the user.
- *
- * Post-processing the block code in this way allows us to use the same generators for the Android
- * and web versions of the robot.
+/*
+ * The generated code for robot blocks includes block ID strings.  These are passed through to
+ * BlocklyBot which reports the currently running block so it can be highlighted in the
+ * workspace while the program runs.
  */
-Blockly.JavaScript.workspaceToCodeWithId = Blockly.JavaScript.workspaceToCode;
-
-Blockly.JavaScript.workspaceToCode = function(workspace) {
-  var code = this.workspaceToCodeWithId(workspace);
-  // Strip out block IDs for readability.
-  code = goog.string.trimRight(code.replace(/(,\s*)?'block_id_[^']+'\)/g, ')'))
-  return code;
-};
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Tim Harvey <harvey.tim@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tharvey.blocklybot;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Fields parsed from a BLE advertisement (scan record)
+ *
+ * The scan record is a sequence of [length][type][data] structures. Only the service UUID
+ * lists are kept as they are all that is needed to recognise a device.
+ */
+public class AdvertisementData {
+	private final static String TAG = AdvertisementData.class.getSimpleName();
+
+	private final static int AD_FLAGS = 0x01;
+	private final static int AD_UUID16_INCOMPLETE = 0x02;
+	private final static int AD_UUID16_COMPLETE = 0x03;
+	private final static int AD_UUID128_INCOMPLETE = 0x06;
+	private final static int AD_UUID128_COMPLETE = 0x07;
+
+	/* Bluetooth base UUID that 16-bit UUIDs are expanded into */
+	private final static long BASE_UUID_LSB = 0x800000805f9b34fbL;
+	private final static long BASE_UUID_MSB = 0x0000000000001000L;
+
+	public enum compatibility {
+		COMPATIBLE,
+		INCOMPATIBLE,
+		UNKNOWN,
+	}
+
+	private final List<UUID> mServiceUuids = new ArrayList<UUID>();
+	/* a complete list of 16-bit service UUIDs was advertised */
+	private boolean mComplete16;
+
+	private AdvertisementData() {
+	}
+
+	/* parse a scan record - malformed trailing structures are ignored */
+	public static AdvertisementData parse(byte[] scanRecord) {
+		AdvertisementData ad = new AdvertisementData();
+		if (scanRecord == null)
+			return ad;
+		int pos = 0;
+		while (pos < scanRecord.length) {
+			int length = scanRecord[pos] & 0xff;
+			/* zero length marks the end of the significant part */
+			if (length == 0)
+				break;
+			if (pos + 1 + length > scanRecord.length) {
+				Log.w(TAG, "truncated scan record");
+				break;
+			}
+			int type = scanRecord[pos + 1] & 0xff;
+			int data = pos + 2;
+			int dataLength = length - 1;
+			switch (type) {
+				case AD_UUID16_COMPLETE:
+					ad.mComplete16 = true;
+					/* fall through */
+				case AD_UUID16_INCOMPLETE:
+					for (int i = 0; i + 2 <= dataLength; i += 2) {
+						int uuid16 = (scanRecord[data + i] & 0xff) | ((scanRecord[data + i + 1] & 0xff) << 8);
+						ad.mServiceUuids.add(fromUuid16(uuid16));
+					}
+					break;
+				case AD_UUID128_COMPLETE:
+				case AD_UUID128_INCOMPLETE:
+					for (int i = 0; i + 16 <= dataLength; i += 16)
+						ad.mServiceUuids.add(fromUuid128(scanRecord, data + i));
+					break;
+				case AD_FLAGS:
+				default:
+					break;
+			}
+			pos += 1 + length;
+		}
+		return ad;
+	}
+
+	private static UUID fromUuid16(int uuid16) {
+		return new UUID(BASE_UUID_MSB | ((long) uuid16 << 32), BASE_UUID_LSB);
+	}
+
+	/* 128-bit UUIDs are advertised little-endian */
+	private static UUID fromUuid128(byte[] b, int offset) {
+		long lsb = 0;
+		long msb = 0;
+		for (int i = 7; i >= 0; i--)
+			lsb = (lsb << 8) | (b[offset + i] & 0xff);
+		for (int i = 15; i >= 8; i--)
+			msb = (msb << 8) | (b[offset + i] & 0xff);
+		return new UUID(msb, lsb);
+	}
+
+	/*
+	 * Decide whether the device can be a robot from its advertisement alone:
+	 *  - advertising the Bluno service: compatible
+	 *  - a complete list of 16-bit service UUIDs without it: incompatible
+	 *  - otherwise it can only be told by connecting and discovering services
+	 * A complete 128-bit list says nothing about the 16-bit services so doesn't rule it out.
+	 */
+	public compatibility getCompatibility() {
+		UUID bluno = UUID.fromString(Bluno.DFROBOT_BLUNO_SERVICE);
+		if (mServiceUuids.contains(bluno))
+			return compatibility.COMPATIBLE;
+		if (mComplete16)
+			return compatibility.INCOMPATIBLE;
+		return compatibility.UNKNOWN;
+	}
+
+	@Override
+	public String toString() {
+		return "uuids=" + mServiceUuids + (mComplete16 ? "(complete16)" : "");
+	}
+}
@@ -31,6 +31,7 @@ public class Audio implements IFunction {
 	private Context mContext;
 	private MediaPlayer mPlayer;
 	String mPlaying;
+	private final Completion mCompletion = new Completion();
 
 	public Audio(Activity activity) {
 		mContext = activity;
@@ -40,6 +41,10 @@ public class Audio implements IFunction {
 		return (mPlaying != null);
 	}
 
+	public boolean waitComplete(long timeoutMs) {
+		return mCompletion.await(timeoutMs);
+	}
+
 	public boolean doFunction(String resource, int p2, int p3) {
 		Log.i(TAG, "Dir:" + Environment.getExternalStorageDirectory());
 		Log.i(TAG, "Playing '" + resource + "'");
@@ -73,6 +78,7 @@ public class Audio implements IFunction {
 		else
 			return false;
 		mPlaying = resource;
+		mCompletion.start();
 		mPlayer = MediaPlayer.create(mContext, id);
 		mPlayer.setLooping(false);
 		mPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
@@ -81,6 +87,7 @@ public class Audio implements IFunction {
 				Log.d(TAG, "complete: " + mPlaying);
 				mPlaying = null;
 				mp.release();
+				mCompletion.done();
 			}
 		});
 		mPlayer.start();
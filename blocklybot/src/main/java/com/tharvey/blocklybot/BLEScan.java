@@ -20,19 +20,17 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -45,19 +43,33 @@ public class BLEScan {
 	private boolean mScanning;
 	private Handler mHandler;
 	private Boolean mCompatOnly;
-	private ArrayList<BluetoothDevice> mQueriedDevices = new ArrayList<BluetoothDevice>();
-	private ArrayList<BluetoothDevice> mQueryQueue = new ArrayList<BluetoothDevice>();
+	private DeviceIndex mDeviceIndex;
+	/* devices waiting for a GATT probe */
+	private ArrayDeque<BluetoothDevice> mQueryQueue = new ArrayDeque<BluetoothDevice>();
+	/* probes in progress keyed by device address */
+	private HashMap<String, Probe> mProbes = new HashMap<String, Probe>();
+	private int mMaxProbes = MAX_PROBES;
+	private boolean mScanExpired;
 	private IDiscover mCallback;
 	// Stops scanning after 15 seconds.
 	private static final long SCAN_PERIOD = 15000;
+	/* default number of devices probed at once */
+	final static int MAX_PROBES = 4;
+	/* time allowed for a probe to connect and discover services */
+	private final static long PROBE_TIMEOUT_MS = 6000;
+	/* devices not advertising for this long are dropped from the list */
+	private static final long STALE_DEVICE_MS = 30000;
+	private static final long EXPIRE_PERIOD_MS = 5000;
 	BluetoothLeService mBluetoothLeService;
+	private BluetoothLeService.LocalBinder mBinder;
 	private DeviceListAdapter mDeviceListAdapter;
 	private Context mContext;
-	private Map<String, Boolean> mKnownDevs;
+	private DeviceRegistry mRegistry;
 
-	public BLEScan(Context context, DeviceListAdapter adapter, Map<String, Boolean> knownDevs, Boolean compatOnly, IDiscover callback) {
+	public BLEScan(Context context, DeviceListAdapter adapter, DeviceIndex index, DeviceRegistry registry, Boolean compatOnly, IDiscover callback) {
 		mHandler = new Handler();
-		mKnownDevs = knownDevs;
+		mDeviceIndex = index;
+		mRegistry = registry;
 		mScanning = false;
 		mCompatOnly = compatOnly;
 		mDeviceListAdapter = adapter;
@@ -72,9 +84,12 @@ public class BLEScan {
 		@Override
 		public void onServiceConnected(ComponentName componentName, IBinder service) {
 			Log.i(TAG, "mServiceConnection onServiceConnected");
-			mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+			mBinder = (BluetoothLeService.LocalBinder) service;
+			mBluetoothLeService = mBinder.getService();
+			mBinder.addListener(mGattListener);
 			if (mBluetoothLeService.initialize()) {
 				mHandler.postDelayed(scanStopHandler, SCAN_PERIOD);
+				mHandler.postDelayed(mExpireHandler, EXPIRE_PERIOD_MS);
 				mScanning = true;
 				mBluetoothAdapter.startLeScan(mLeScanCallback);
 			} else {
@@ -86,64 +101,152 @@ public class BLEScan {
 		@Override
 		public void onServiceDisconnected(ComponentName componentName) {
 			Log.i(TAG, "mServiceConnection onServiceDisconnected");
-			mBluetoothLeService.disconnect();
 			mBluetoothLeService = null;
 		}
 	};
 
-	private void queryNext() {
-		if (mQueryQueue.size() > 0) {
-			BluetoothDevice device = mQueryQueue.get(0);
-			mCallback.onQuery(device);
-			Log.i(TAG, "querying services for " + device.getAddress() + ":" + device.getName());
-			mBluetoothLeService.connect(device.getAddress());
-		} else {
+	/* A GATT probe of one device - runs as the probe's timeout */
+	private class Probe implements Runnable {
+		final BluetoothDevice mDevice;
+
+		Probe(BluetoothDevice device) {
+			mDevice = device;
+		}
+
+		@Override
+		public void run() {
+			Log.i(TAG, "probe of " + mDevice.getAddress() + ":" + mDevice.getName() + " timed out");
+			finishProbe(mDevice);
+		}
+	}
+
+	/* number of devices probed at once */
+	public void setMaxProbes(int maxProbes) {
+		mMaxProbes = Math.max(1, maxProbes);
+		startProbes();
+	}
+
+	/* queue a device for a GATT probe - probes are managed on the UI thread */
+	private void queueProbe(final BluetoothDevice device) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (!mScanning)
+					return;
+				mCallback.onQuery(device);
+				mQueryQueue.add(device);
+				startProbes();
+			}
+		});
+	}
+
+	/* start probes until the limit is reached */
+	private void startProbes() {
+		if (!mScanning || mBluetoothLeService == null)
+			return;
+		while (mProbes.size() < mMaxProbes && !mQueryQueue.isEmpty()) {
+			BluetoothDevice device = mQueryQueue.poll();
+			Probe probe = new Probe(device);
+			Log.i(TAG, "querying services for " + device.getAddress() + ":" + device.getName()
+					+ " (" + (mProbes.size() + 1) + " probing)");
+			mProbes.put(device.getAddress(), probe);
+			mHandler.postDelayed(probe, PROBE_TIMEOUT_MS);
+			if (!mBluetoothLeService.connect(device.getAddress(), false))
+				finishProbe(device);
+		}
+		if (mScanExpired && mProbes.isEmpty() && mQueryQueue.isEmpty()) {
 			Log.i(TAG, "BLE Discovery complete - no more outstanding queries");
 			done();
 		}
 	}
 
-	// Handles various events fired by the Service:
-	//   ACTION_GATT_CONNECTED: connected to a GATT server.
-	//   ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-	//   ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-	//   ACTION_DATA_AVAILABLE: received data from the device (read result or notification)
-	private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+	/* tear down a probe's connection and start the next probe */
+	private void finishProbe(BluetoothDevice device) {
+		Probe probe = mProbes.remove(device.getAddress());
+		if (probe == null)
+			return;
+		mHandler.removeCallbacks(probe);
+		mBluetoothLeService.disconnect(device.getAddress());
+		mBluetoothLeService.close(device.getAddress());
+		startProbes();
+	}
+
+	/* abandon all probes in progress and any waiting */
+	private void cancelProbes() {
+		mQueryQueue.clear();
+		for (Probe probe : mProbes.values()) {
+			mHandler.removeCallbacks(probe);
+			if (mBluetoothLeService != null) {
+				mBluetoothLeService.disconnect(probe.mDevice.getAddress());
+				mBluetoothLeService.close(probe.mDevice.getAddress());
+			}
+		}
+		mProbes.clear();
+	}
+
+	// Handles various events fired by the Service, reposted to the UI thread:
+	//   onGattServicesDiscovered: discovered GATT services.
+	//   onGattDisconnected: disconnected from a GATT server.
+	private final BluetoothLeService.IGattListener mGattListener = new BluetoothLeService.IGattListener() {
 		@Override
-		public void onReceive(Context context, Intent intent) {
-			final String action = intent.getAction();
-			BluetoothDevice device = intent.getParcelableExtra(BluetoothLeService.EXTRA_DEVICE);
-			Log.d(TAG, "Received " + action + " from " + device.getAddress() + ":" + device.getName());
-			if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-				boolean compatible = false;
-				// Show all the supported services and characteristics on the user interface.
-				for (BluetoothGattService gattService : mBluetoothLeService.getSupportedGattServices()) {
-					Log.i(TAG, "service:" + gattService.getUuid().toString());
-					if (gattService.getUuid().equals(UUID.fromString(Bluno.DFROBOT_BLUNO_SERVICE)))
-						compatible = true;
-					List<BluetoothGattCharacteristic> gattCharacteristics = gattService.getCharacteristics();
-					ArrayList<BluetoothGattCharacteristic> charas = new ArrayList<BluetoothGattCharacteristic>();
-					// Loops through available Characteristics.
-					for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
-						Log.i(TAG, "  char:" + gattCharacteristic.getUuid().toString());
-					}
+		public void onGattConnected(BluetoothDevice device) {
+		}
+
+		@Override
+		public void onGattDisconnected(final BluetoothDevice device) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (!mProbes.containsKey(device.getAddress()))
+						return;
+					Log.d(TAG, "Disconnected from " + device.getAddress() + ":" + device.getName());
+					finishProbe(device);
 				}
-				if (compatible) {
-					Log.i(TAG, "Found compatible device: " + device.getName());
-					mDeviceListAdapter.addDevice(device);
+			});
+		}
+
+		@Override
+		public void onGattServicesDiscovered(final BluetoothDevice device) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (mProbes.containsKey(device.getAddress()))
+						onServicesDiscovered(device);
 				}
-				mCallback.onDiscover(device, compatible);
-				mBluetoothLeService.disconnect();
-			} else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-				mQueryQueue.remove(device);
-				mBluetoothLeService.disconnect();
-				queryNext();
-			} else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-				Log.d(TAG, "Data Available: " + intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
-			}
+			});
+		}
+
+		@Override
+		public void onDataAvailable(BluetoothDevice device, BluetoothGattCharacteristic characteristic, byte[] data) {
+		}
+
+		@Override
+		public void onGattWritesDone(BluetoothDevice device) {
 		}
 	};
 
+	private void onServicesDiscovered(BluetoothDevice device) {
+		Log.d(TAG, "Services discovered on " + device.getAddress() + ":" + device.getName());
+		boolean compatible = false;
+		// Show all the supported services and characteristics on the user interface.
+		for (BluetoothGattService gattService : mBluetoothLeService.getSupportedGattServices(device.getAddress())) {
+			Log.i(TAG, "service:" + gattService.getUuid().toString());
+			if (gattService.getUuid().equals(UUID.fromString(Bluno.DFROBOT_BLUNO_SERVICE)))
+				compatible = true;
+			List<BluetoothGattCharacteristic> gattCharacteristics = gattService.getCharacteristics();
+			// Loops through available Characteristics.
+			for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
+				Log.i(TAG, "  char:" + gattCharacteristic.getUuid().toString());
+			}
+		}
+		if (compatible) {
+			Log.i(TAG, "Found compatible device: " + device.getName());
+			mDeviceListAdapter.addDevice(device);
+		}
+		mCallback.onDiscover(device, compatible);
+		finishProbe(device);
+	}
+
 	/* start scanning */
 	protected boolean start() {
 		Log.d(TAG, "start()");
@@ -152,18 +255,12 @@ public class BLEScan {
 		if (!mBluetoothAdapter.isEnabled())
 			return false;
 		if (!mScanning) {
-			// setup characteristic receiver
-			final IntentFilter filter = new IntentFilter();
-			filter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-			filter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-			filter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-			filter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-			mContext.registerReceiver(mReceiver, filter);
 			Intent gattServiceIntent = new Intent(mContext, BluetoothLeService.class);
 			mContext.bindService(gattServiceIntent, mServiceConnection, Context.BIND_AUTO_CREATE);
 			mScanning = true;
-			mQueriedDevices.clear();
+			mScanExpired = false;
 			mQueryQueue.clear();
+			mProbes.clear();
 		}
 		return true;
 	}
@@ -177,10 +274,13 @@ public class BLEScan {
 
 	/* unregister services */
 	protected void done() {
-		mBluetoothLeService.disconnect();
+		mHandler.removeCallbacks(scanStopHandler);
+		mHandler.removeCallbacks(mExpireHandler);
+		cancelProbes();
 		mBluetoothAdapter.stopLeScan(mLeScanCallback);
+		if (mBinder != null)
+			mBinder.removeListener(mGattListener);
 		mContext.unbindService(mServiceConnection);
-		mContext.unregisterReceiver(mReceiver);
 		mScanning = false;
 		mCallback.onDiscoveryComplete();
 	}
@@ -191,12 +291,30 @@ public class BLEScan {
 		public void run() {
 			Log.d(TAG, "scanStopHandler");
 			if (mScanning) {
-				if (!mCompatOnly || (mQueryQueue.size() == 0))
-					done();
+				/* no new devices, but let outstanding probes finish */
+				mScanExpired = true;
+				mBluetoothAdapter.stopLeScan(mLeScanCallback);
+				startProbes();
 			}
 		}
 	};
 
+	/* drop devices that have stopped advertising - they are found again if they come back */
+	private Runnable mExpireHandler = new Runnable() {
+		@Override
+		public void run() {
+			for (BluetoothDevice device : mDeviceIndex.expire(DeviceIndex.SOURCE_LE, STALE_DEVICE_MS)) {
+				/* devices being probed or connected don't advertise */
+				if (mProbes.containsKey(device.getAddress()) || RobotRegistry.get(device.getAddress()) != null)
+					continue;
+				Log.i(TAG, "expired " + device.getAddress() + ":" + device.getName());
+				mDeviceListAdapter.removeDevice(device);
+			}
+			if (mScanning && !mScanExpired)
+				mHandler.postDelayed(this, EXPIRE_PERIOD_MS);
+		}
+	};
+
 	// Device scan callback.
 	private BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
 		@Override
@@ -218,29 +336,47 @@ public class BLEScan {
                 return;
 */
 		    /* BLE scan will keep reporting the same devices over and over, unlike BT scan */
-			if (mQueriedDevices.contains(device))
+			if (!mDeviceIndex.update(device, DeviceIndex.SOURCE_LE, rssi))
 				return;
-			mQueriedDevices.add(device);
 			Log.i(TAG, "Found BLE device " + device.getAddress() + ":" + device.getName());
-			if (mKnownDevs.containsKey(device.getAddress())) {
-				if (mKnownDevs.get(device.getAddress())) {
+			Boolean known = mRegistry.getCompatible(device.getAddress());
+			if (known != null) {
+				if (known) {
 					Log.i(TAG, "adding known compatible device");
 					mDeviceListAdapter.addDevice(device);
+					mCallback.onFound(device);
 				} else {
 					Log.i(TAG, "skipping known uncompatible device");
 				}
 				return;
 			}
-            /* unknown device */
-			if (!mCompatOnly) {
+            /* unknown device - try to tell what it is from the advertisement */
+			AdvertisementData ad = AdvertisementData.parse(scanRecord);
+			Log.d(TAG, "advertisement: " + ad);
+			final AdvertisementData.compatibility compat = ad.getCompatibility();
+			if (compat == AdvertisementData.compatibility.COMPATIBLE) {
+				Log.i(TAG, "advertisement is compatible");
+				mDeviceListAdapter.addDevice(device);
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						mCallback.onDiscover(device, true);
+					}
+				});
+			} else if (compat == AdvertisementData.compatibility.INCOMPATIBLE) {
+				/* not cached - the advertisement may change so it is checked again next scan */
+				Log.i(TAG, "advertisement is uncompatible");
+				if (!mCompatOnly)
+					mDeviceListAdapter.addDevice(device);
+			} else if (!mCompatOnly) {
 				Log.i(TAG, "adding");
 				mDeviceListAdapter.addDevice(device);
+			} else if (RobotRegistry.get(device.getAddress()) != null) {
+				/* probing would tear down the robot's connection */
+				Log.i(TAG, "skipping connected robot");
 			} else {
 				Log.i(TAG, "Adding to query queue");
-				mCallback.onQuery(device);
-				mQueryQueue.add(device);
-				if (mQueryQueue.size() == 1)
-					queryNext();
+				queueProbe(device);
 			}
 		}
 	};
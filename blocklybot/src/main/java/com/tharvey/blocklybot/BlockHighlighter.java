@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 Tim Harvey <harvey.tim@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tharvey.blocklybot;
+
+import android.view.Choreographer;
+import android.view.View;
+
+import com.google.blockly.android.control.BlocklyController;
+import com.google.blockly.android.ui.BlockView;
+import com.google.blockly.model.Block;
+import com.google.blockly.model.Input;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Highlight the currently executing block in the workspace
+ *
+ * Script threads report every block they execute, only the latest is kept and the
+ * workspace is updated at most once per display frame.
+ */
+public class BlockHighlighter implements IBlockListener, Choreographer.FrameCallback {
+	private final BlocklyController mController;
+	private final Choreographer mChoreographer;
+	private final AtomicReference<String> mPending = new AtomicReference<String>();
+	private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+	private final HashMap<String, Block> mBlocks = new HashMap<String, Block>();
+	private String mActiveId;
+	private View mActive;
+
+	/* must be created on the UI thread */
+	public BlockHighlighter(BlocklyController controller) {
+		mController = controller;
+		mChoreographer = Choreographer.getInstance();
+	}
+
+	@Override
+	public void onBlock(String blockId) {
+		mPending.set(blockId);
+		if (mScheduled.compareAndSet(false, true))
+			mChoreographer.postFrameCallback(this);
+	}
+
+	@Override
+	public void doFrame(long frameTimeNanos) {
+		mScheduled.set(false);
+		String id = mPending.get();
+		if (id == null ? mActiveId == null : id.equals(mActiveId))
+			return;
+		mActiveId = id;
+		if (mActive != null) {
+			mActive.setSelected(false);
+			mActive = null;
+		}
+		if (id == null)
+			return;
+		Block block = findBlock(id);
+		if (block == null)
+			return;
+		BlockView view = mController.getWorkspaceHelper().getView(block);
+		if (view instanceof View) {
+			mActive = (View) view;
+			mActive.setSelected(true);
+		}
+	}
+
+	/* lookup a block by id - the index is rebuilt when the workspace has changed */
+	private Block findBlock(String id) {
+		Block block = mBlocks.get(id);
+		if (block == null) {
+			mBlocks.clear();
+			for (Block root : mController.getWorkspace().getRootBlocks())
+				indexBlocks(root);
+			block = mBlocks.get(id);
+		}
+		return block;
+	}
+
+	private void indexBlocks(Block block) {
+		while (block != null) {
+			mBlocks.put(block.getId(), block);
+			for (Input input : block.getInputs())
+				indexBlocks(input.getConnectedBlock());
+			block = block.getNextBlock();
+		}
+	}
+}
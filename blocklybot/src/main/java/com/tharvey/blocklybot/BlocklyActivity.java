@@ -121,7 +121,14 @@ public class BlocklyActivity extends AbstractBlocklyActivity implements IConnect
 		workspaceName = mPreferences.getString("pref_lastWorkspace", SAVED_WORKSPACE_FILENAME_DEFAULT);
 
 		mParser = new JSParser(this);
-		mRobot = Mobbob.getMobob();
+		if (BuildConfig.DEBUG)
+			mParser.setTraceLevel(JSParser.traceLevel.LINE);
+		mParser.setBlockListener(new BlockHighlighter(getController()));
+		mRobot = RobotRegistry.getActiveMobbob();
+
+		/* Reattach to the last robot on startup */
+		if (savedInstanceState == null && mRobot == null)
+			DiscoverySelector.reconnect(this, this);
 
         /* Autoload last workspace */
 		onLoadWorkspace();
@@ -139,7 +146,7 @@ public class BlocklyActivity extends AbstractBlocklyActivity implements IConnect
 	@Override
 	public void connectionStateChanged(connectionStateEnum state) {
 		Log.i(TAG, "connection state changed:" + state);
-		mRobot = Mobbob.getMobob();
+		mRobot = RobotRegistry.getActiveMobbob();
 		this.runOnUiThread(new Runnable() {
 			@Override
 			public void run() {
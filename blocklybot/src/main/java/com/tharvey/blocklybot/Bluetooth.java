@@ -27,6 +27,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.StringWriter;
+import java.util.ArrayDeque;
 import java.util.UUID;
 
 public class Bluetooth extends Mobbob {
@@ -35,8 +36,13 @@ public class Bluetooth extends Mobbob {
 	// Well-known SPP UUID
 	private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 	private BluetoothSocket mmSocket = null;
+	/* frames waiting for the writer thread */
+	private final static int WRITE_QUEUE_SIZE = 32;
+	/* largest single socket write when coalescing queued frames */
+	private final static int WRITE_BUFFER_SIZE = 512;
 
 	private class ConnectThread extends Thread {
+		private final BluetoothSocket mmSocket;
 
 		public ConnectThread(BluetoothDevice device) {
 			// Use a temporary object that is later assigned to mmSocket,
@@ -50,24 +56,36 @@ public class Bluetooth extends Mobbob {
 				Log.e(TAG, "Socket create() failed", e);
 			}
 			mmSocket = tmp;
+			/* kept so disconnect() can close it */
+			Bluetooth.this.mmSocket = tmp;
 		}
 
 		public void run() {
 			try {
+				if (mmSocket == null)
+					throw new IOException("no socket");
 				// Connect the device through the socket. This will block
 				// until it succeeds or throws an exception
 				mmSocket.connect();
 			} catch (IOException connectException) {
 				// Unable to connect; close the socket and get out
-				try {
-					mmSocket.close();
-				} catch (IOException closeException) {
+				cancel();
+				/* a cancelled attempt has already been dealt with */
+				synchronized (Bluetooth.this) {
+					if (mConnectThread != this)
+						return;
+					mConnectThread = null;
 				}
+				fail("socket connect failed: " + connectException.getMessage(), true);
 				return;
 			}
 
 			// Reset the ConnectThread because we're done
-			synchronized (this) {
+			synchronized (Bluetooth.this) {
+				if (mConnectThread != this) {
+					cancel();
+					return;
+				}
 				mConnectThread = null;
 			}
 
@@ -80,7 +98,8 @@ public class Bluetooth extends Mobbob {
 		 */
 		public void cancel() {
 			try {
-				mmSocket.close();
+				if (mmSocket != null)
+					mmSocket.close();
 			} catch (IOException e) {
 			}
 		}
@@ -90,6 +109,7 @@ public class Bluetooth extends Mobbob {
 		private final BluetoothSocket mmSocket;
 		private final InputStream mmInStream;
 		private final OutputStream mmOutStream;
+		private volatile boolean mmRunning = true;
 
 		public ConnectedThread(BluetoothSocket socket) {
 			Log.d(TAG, "ConnectedThread");
@@ -112,28 +132,22 @@ public class Bluetooth extends Mobbob {
 		public void run() {
 			byte[] buffer = new byte[1024];  // buffer store for the stream
 			int bytes; // bytes returned from read()
-			char[] bufferc = new char[1024];
-			int n;
-			String inString = "";
 
 			// Keep listening to the InputStream until an exception occurs
-			while (getConnectionState() == IConnection.connectionStateEnum.isConnected) {
+			while (mmRunning) {
 				try {
-					// Read from the InputStream until we have a CRLF terminated string
+					// Frames may be split across reads or several may arrive in one
 					bytes = mmInStream.read(buffer);
-					String chunk = new String(buffer, 0, bytes);
-					if (chunk.contains("\r\n")) {
-						inString += chunk;
-						Log.d(TAG, "<< " + inString);
-						onSerialReceived(inString);
-						inString = "";
-					} else {
-						inString += chunk;
-					}
+					if (bytes < 0)
+						break;
+					onSerialData(buffer, 0, bytes);
 				} catch (IOException e) {
 					break;
 				}
 			}
+			/* the socket dropped rather than being closed by us */
+			if (mmRunning)
+				linkLost("read failed");
 		}
 
 		public String getStringFromInputStream(InputStream stream, String charsetName) throws IOException {
@@ -145,16 +159,13 @@ public class Bluetooth extends Mobbob {
 			return writer.toString();
 		}
 
-		/* Call this from the main activity to send data to the remote device */
-		public void write(byte[] bytes) {
-			try {
-				mmOutStream.write(bytes);
-			} catch (IOException e) {
-			}
+		OutputStream getOutputStream() {
+			return mmOutStream;
 		}
 
 		/* Call this from the main activity to shutdown the connection */
 		public void cancel() {
+			mmRunning = false;
 			try {
 				mmSocket.close();
 			} catch (IOException e) {
@@ -162,8 +173,92 @@ public class Bluetooth extends Mobbob {
 		}
 	}
 
+	/**
+	 * Write frames to the socket so callers never block on radio I/O
+	 *
+	 * Frames are queued and everything pending when the thread wakes is coalesced into a
+	 * single socket write. A write failure drops the connection.
+	 */
+	private class WriteThread extends Thread {
+		private final OutputStream mmOutStream;
+		private final ArrayDeque<byte[]> mQueue = new ArrayDeque<byte[]>(WRITE_QUEUE_SIZE);
+		private final byte[] mBuffer = new byte[WRITE_BUFFER_SIZE];
+		private int mLength;
+		private boolean mRunning = true;
+		private int mDropped = 0;
+
+		public WriteThread(OutputStream out) {
+			super("Bluetooth-writer");
+			mmOutStream = out;
+		}
+
+		/* queue a frame - returns false if the queue is full */
+		public synchronized boolean write(byte[] bytes) {
+			if (!mRunning)
+				return false;
+			if (mQueue.size() >= WRITE_QUEUE_SIZE) {
+				mDropped++;
+				Log.w(TAG, "write queue full: " + mDropped + " dropped");
+				return false;
+			}
+			mQueue.add(bytes);
+			notify();
+			return true;
+		}
+
+		/* coalesce queued frames into mBuffer - returns the data to write (a frame larger
+		 * than mBuffer is returned on its own) or null once cancelled */
+		private synchronized byte[] take() throws InterruptedException {
+			while (mRunning && mQueue.isEmpty())
+				wait();
+			if (!mRunning)
+				return null;
+			if (mQueue.peek().length > WRITE_BUFFER_SIZE) {
+				mLength = mQueue.peek().length;
+				return mQueue.poll();
+			}
+			mLength = 0;
+			while (!mQueue.isEmpty() && mLength + mQueue.peek().length <= WRITE_BUFFER_SIZE) {
+				byte[] frame = mQueue.poll();
+				System.arraycopy(frame, 0, mBuffer, mLength, frame.length);
+				mLength += frame.length;
+			}
+			return mBuffer;
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					byte[] data = take();
+					if (data == null)
+						break;
+					mmOutStream.write(data, 0, mLength);
+					mmOutStream.flush();
+				}
+			} catch (InterruptedException e) {
+				Log.i(TAG, "writer interrupted");
+			} catch (IOException e) {
+				Log.e(TAG, "write failed", e);
+				synchronized (this) {
+					if (!mRunning)
+						return;
+					mRunning = false;
+					mQueue.clear();
+				}
+				linkLost("write failed");
+			}
+		}
+
+		public synchronized void cancel() {
+			mRunning = false;
+			mQueue.clear();
+			notify();
+		}
+	}
+
 	private ConnectThread mConnectThread;
 	private ConnectedThread mConnectedThread;
+	private volatile WriteThread mWriteThread;
 	private BluetoothDevice mDevice;
 
 	public Bluetooth(Context context, Handler handler, BluetoothDevice device) {
@@ -177,13 +272,9 @@ public class Bluetooth extends Mobbob {
 		}
 
 		// Cancel any thread currently running a connection
-		if (mConnectedThread != null) {
-			mConnectedThread.cancel();
-			mConnectedThread = null;
-		}
+		cancelConnected();
 
 		setState(IConnection.connectionStateEnum.isScanning);
-		connect();
 	}
 
 	public synchronized int connect() {
@@ -201,20 +292,27 @@ public class Bluetooth extends Mobbob {
 		}
 
 		// Cancel any thread currently running a connection
-		if (mConnectedThread != null) {
-			mConnectedThread.cancel();
-			mConnectedThread = null;
-		}
+		cancelConnected();
 
 		// Start the thread to connect with the given device
 		mConnectThread = new ConnectThread(mDevice);
 		mConnectThread.start();
-		setState(IConnection.connectionStateEnum.isConnecting);
 		return 0;
 	}
 
+	@Override
+	protected synchronized void abortConnect() {
+		if (mConnectThread != null) {
+			mConnectThread.cancel();
+			mConnectThread = null;
+		}
+		cancelConnected();
+	}
+
 	public synchronized void disconnect() {
 		Log.d(TAG, "disconnect " + toString());
+		stopConnect();
+		RobotRegistry.unregister(this);
 
 		// Cancel any thread attempting to make a connection
 		if (getConnectionState() == IConnection.connectionStateEnum.isConnecting) {
@@ -225,14 +323,12 @@ public class Bluetooth extends Mobbob {
 		}
 
 		// Cancel any thread currently running a connection
-		if (mConnectedThread != null) {
-			mConnectedThread.cancel();
-			mConnectedThread = null;
-		}
+		cancelConnected();
 
-		// close connection
+		// close connection - there is no socket if connecting never started
 		try {
-			mmSocket.close();
+			if (mmSocket != null)
+				mmSocket.close();
 		} catch (IOException e) {
 			Log.e(TAG, "Socket close() failed", e);
 		}
@@ -256,21 +352,33 @@ public class Bluetooth extends Mobbob {
 		}
 
 		// Cancel any thread currently running a connection
-		if (mConnectedThread != null) {
-			mConnectedThread.cancel();
-			mConnectedThread = null;
-		}
+		cancelConnected();
 
-		// Start the thread to manage the connection and perform transmissions
+		// Start the threads to manage the connection and perform transmissions
 		mConnectedThread = new ConnectedThread(socket);
 		mConnectedThread.start();
-		setState(IConnection.connectionStateEnum.isConnected);
+		mWriteThread = new WriteThread(mConnectedThread.getOutputStream());
+		mWriteThread.start();
+		setPhase(connectPhase.READY);
 	}
 
-	public void serialSend(String theString) {
-		if (getConnectionState() == IConnection.connectionStateEnum.isConnected) {
-			Log.d(TAG, ">> " + theString);
-			mConnectedThread.write(theString.getBytes());
+	private void cancelConnected() {
+		if (mWriteThread != null) {
+			mWriteThread.cancel();
+			mWriteThread = null;
 		}
+		if (mConnectedThread != null) {
+			mConnectedThread.cancel();
+			mConnectedThread = null;
+		}
+	}
+
+	/* queue data for the writer thread - never blocks on the socket */
+	public boolean serialSend(byte[] data) {
+		WriteThread writer = mWriteThread;
+		if (getConnectionState() != IConnection.connectionStateEnum.isConnected || writer == null)
+			return false;
+		Log.d(TAG, ">> " + toPrintable(data, 0, data.length));
+		return writer.write(data);
 	}
 }
@@ -29,23 +29,31 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connections and data communication with GATT servers hosted on
+ * Bluetooth LE devices.
+ *
+ * Any number of devices may be connected at once, each connection is keyed by device
+ * address and has its own GATT client, state, write queue and payload size.
  */
 public class BluetoothLeService extends Service {
 	private final static String TAG = BluetoothLeService.class.getSimpleName();
 
 	private BluetoothManager mBluetoothManager;
 	private BluetoothAdapter mBluetoothAdapter;
-	private BluetoothGatt mBluetoothGatt;
-	private int mConnectionState = STATE_DISCONNECTED;
+	private final ConcurrentHashMap<String, GattConnection> mConnections = new ConcurrentHashMap<String, GattConnection>();
 
 	private static final int STATE_DISCONNECTED = 0;
 	private static final int STATE_CONNECTING = 1;
@@ -54,225 +62,162 @@ public class BluetoothLeService extends Service {
 	//To tell the onCharacteristicWrite call back function that this is a new characteristic,
 	//not the Write Characteristic to the device successfully.
 	private static final int WRITE_NEW_CHARACTERISTIC = -1;
-	//define the limited length of the characteristic.
-	private static final int MAX_CHARACTERISTIC_LENGTH = 17;
-	//Show that Characteristic is writing or not.
-	private boolean mIsWritingCharacteristic = false;
-
-	//class to store the Characteristic and content string push into the ring buffer.
+	//define the limited length of the characteristic (used unless a larger MTU is negotiated).
+	static final int MAX_CHARACTERISTIC_LENGTH = 17;
+	//ATT header bytes in each packet that are not available for the value
+	private static final int ATT_HEADER_LENGTH = 3;
+	//MTU every link starts with
+	private static final int DEFAULT_MTU = 23;
+	//MTU requested once services are discovered (API 21+) and how long to wait for the answer
+	private static final int PREFERRED_MTU = 185;
+	private static final long MTU_TIMEOUT_MS = 1000;
+	//a connection still connecting after this long is replaced by the next connect()
+	private static final long CONNECT_TIMEOUT_MS = 10000;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	//class to store the Characteristic and the bytes still to be written
 	private class BluetoothGattCharacteristicHelper {
-		BluetoothGattCharacteristic mCharacteristic;
-		String mCharacteristicValue;
+		final BluetoothGattCharacteristic mCharacteristic;
+		final byte[] mData;
+		int mOffset;
 
-		BluetoothGattCharacteristicHelper(BluetoothGattCharacteristic characteristic, String characteristicValue) {
+		BluetoothGattCharacteristicHelper(BluetoothGattCharacteristic characteristic, byte[] data) {
 			mCharacteristic = characteristic;
-			mCharacteristicValue = characteristicValue;
+			mData = data;
+			mOffset = 0;
 		}
 	}
 
-	//ring buffer
-	private RingBuffer<BluetoothGattCharacteristicHelper> mCharacteristicRingBuffer = new RingBuffer<BluetoothGattCharacteristicHelper>(8);
-	public final static String ACTION_GATT_CONNECTED = "ACTION_GATT_CONNECTED";
-	public final static String ACTION_GATT_DISCONNECTED = "ACTION_GATT_DISCONNECTED";
-	public final static String ACTION_GATT_SERVICES_DISCOVERED = "ACTION_GATT_SERVICES_DISCOVERED";
-	public final static String ACTION_DATA_AVAILABLE = "ACTION_DATA_AVAILABLE";
-	public final static String EXTRA_DATA = "EXTRA_DATA";
-	public final static String EXTRA_DEVICE = "EXTRA_DEVICE";
-
-	public class RingBuffer<T> {
-
-		private T[] buffer;          // queue elements
-		private int count = 0;          // number of elements on queue
-		private int indexOut = 0;       // index of first element of queue
-		private int indexIn = 0;       // index of next available slot
-
-		// cast needed since no generic array creation in Java
-		public RingBuffer(int capacity) {
-			buffer = (T[]) new Object[capacity];
-		}
+	//size of each connection's queue of pending writes
+	private final static int WRITE_QUEUE_SIZE = 32;
 
-		public boolean isEmpty() {
-			return count == 0;
-		}
+	//writeCharacteristic timeouts: fail at once when the queue is full or wait for room
+	public final static long WRITE_NO_WAIT = 0;
+	public final static long WRITE_WAIT_FOREVER = -1;
 
-		public boolean isFull() {
-			return count == buffer.length;
-		}
+	/**
+	 * Interface for GATT events, called directly on the thread the GATT callback is made on
+	 * (a binder thread) so implementations must hand off anything that needs the UI thread.
+	 * Events for every connection are delivered to every listener.
+	 */
+	public interface IGattListener {
+		/* connected to a GATT server */
+		void onGattConnected(BluetoothDevice device);
 
-		public int size() {
-			return count;
-		}
+		/* disconnected from a GATT server */
+		void onGattDisconnected(BluetoothDevice device);
 
-		public void clear() {
-			count = 0;
-		}
+		/* discovered GATT services */
+		void onGattServicesDiscovered(BluetoothDevice device);
 
-		public void push(T item) {
-			if (count == buffer.length) {
-				Log.d(TAG, "Ring buffer overflow");
-//            throw new RuntimeException("Ring buffer overflow");
-			}
-			buffer[indexIn] = item;
-			indexIn = (indexIn + 1) % buffer.length;     // wrap-around
-			if (count++ == buffer.length) {
-				count = buffer.length;
-			}
-		}
+		/* received data from the device (read result or notification) */
+		void onDataAvailable(BluetoothDevice device, BluetoothGattCharacteristic characteristic, byte[] data);
 
-		public T pop() {
-			if (isEmpty()) {
-				Log.d(TAG, "Ring buffer pop underflow");
-//            throw new RuntimeException("Ring buffer underflow");
-			}
-			T item = buffer[indexOut];
-			buffer[indexOut] = null;                  // to help with garbage collection
-			if (count-- == 0) {
-				count = 0;
-			}
-			indexOut = (indexOut + 1) % buffer.length; // wrap-around
-			return item;
-		}
+		/* every queued write has been sent */
+		void onGattWritesDone(BluetoothDevice device);
+	}
 
-		public T next() {
-			if (isEmpty()) {
-				Log.d(TAG, "Ring buffer next underflow");
-//            throw new RuntimeException("Ring buffer underflow");
-			}
-			return buffer[indexOut];
+	private final CopyOnWriteArrayList<IGattListener> mListeners = new CopyOnWriteArrayList<IGattListener>();
+
+	/**
+	 * A connection to one device. Implements callback methods for GATT events that the app cares
+	 * about. For example, connection change and services discovered.
+	 */
+	private class GattConnection extends BluetoothGattCallback {
+		final String mAddress;
+		//probes only read the services so don't negotiate an MTU
+		final boolean mRequestMtu;
+		volatile BluetoothGatt mGatt;
+		volatile int mConnectionState = STATE_DISCONNECTED;
+		//SystemClock.elapsedRealtime() when connecting started
+		long mConnectStart;
+		//bytes of value sent per characteristic write
+		volatile int mPayloadSize = MAX_CHARACTERISTIC_LENGTH;
+		boolean mMtuPending = false;
+		//Show that Characteristic is writing or not.
+		boolean mIsWritingCharacteristic = false;
+		//queue of pending writes: produced by writeCharacteristic and consumed by onCharacteristicWrite
+		final SpscQueue<BluetoothGattCharacteristicHelper> mWriteQueue =
+				new SpscQueue<BluetoothGattCharacteristicHelper>(WRITE_QUEUE_SIZE);
+		//serializes producers and lets them wait for room in the queue
+		final Object mWriteLock = new Object();
+		volatile int mWriteWaiters = 0;
+		int mWritesDropped = 0;
+		int mWritesFailed = 0;
+
+		GattConnection(String address, boolean requestMtu) {
+			mAddress = address;
+			mRequestMtu = requestMtu;
 		}
-	}
 
-	// Implements callback methods for GATT events that the app cares about.  For example,
-	// connection change and services discovered.
-	private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
 		@Override
 		public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-			String intentAction;
 			if (newState == BluetoothProfile.STATE_CONNECTED) {
-				intentAction = ACTION_GATT_CONNECTED;
 				mConnectionState = STATE_CONNECTED;
-				broadcastUpdate(intentAction, gatt.getDevice());
-				Log.i(TAG, "Connected to GATT server.");
+				for (IGattListener listener : mListeners)
+					listener.onGattConnected(gatt.getDevice());
+				Log.i(TAG, mAddress + ": Connected to GATT server.");
 				// Attempts to discover services after successful connection.
-				Log.i(TAG, "Attempting to start service discovery:" +
-						mBluetoothGatt.discoverServices());
+				Log.i(TAG, mAddress + ": Attempting to start service discovery:" +
+						gatt.discoverServices());
 
 			} else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-				intentAction = ACTION_GATT_DISCONNECTED;
 				mConnectionState = STATE_DISCONNECTED;
-				Log.i(TAG, "Disconnected from GATT server.");
+				Log.i(TAG, mAddress + ": Disconnected from GATT server.");
+				release();
 				gatt.close();
-				broadcastUpdate(intentAction, gatt.getDevice());
+				mConnections.remove(mAddress, this);
+				for (IGattListener listener : mListeners)
+					listener.onGattDisconnected(gatt.getDevice());
 			}
 		}
 
 		@Override
 		public void onServicesDiscovered(BluetoothGatt gatt, int status) {
 			if (status == BluetoothGatt.GATT_SUCCESS) {
-				broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED, gatt.getDevice());
+				//services are reported once the MTU exchange is over so it does not overlap other requests
+				if (!requestMtu(gatt))
+					servicesDiscovered(gatt.getDevice());
 			} else {
-				Log.w(TAG, "onServicesDiscovered received: " + status);
+				Log.w(TAG, mAddress + ": onServicesDiscovered received: " + status);
 			}
 		}
 
 		@Override
 		public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+			boolean done;
 			//this block should be synchronized to prevent the function overloading
+			//and so there is only ever one consumer of mWriteQueue
 			synchronized (this) {
-				//CharacteristicWrite success
-				if (status == BluetoothGatt.GATT_SUCCESS) {
-					//Log.d(TAG, "onCharacteristicWrite success:"+ new String(characteristic.getValue()));
-					if (mCharacteristicRingBuffer.isEmpty()) {
-						mIsWritingCharacteristic = false;
-					} else {
-						BluetoothGattCharacteristicHelper bluetoothGattCharacteristicHelper = mCharacteristicRingBuffer.next();
-						if (bluetoothGattCharacteristicHelper.mCharacteristicValue.length() > MAX_CHARACTERISTIC_LENGTH) {
-							try {
-								bluetoothGattCharacteristicHelper.mCharacteristic.setValue(bluetoothGattCharacteristicHelper.mCharacteristicValue.substring(0, MAX_CHARACTERISTIC_LENGTH).getBytes("ISO-8859-1"));
-
-							} catch (UnsupportedEncodingException e) {
-								// this should never happen because "US-ASCII" is hard-coded.
-								throw new IllegalStateException(e);
-							}
-
-
-							if (mBluetoothGatt.writeCharacteristic(bluetoothGattCharacteristicHelper.mCharacteristic)) {
-								//Log.d(TAG, "writeCharacteristic init "+new String(bluetoothGattCharacteristicHelper.mCharacteristic.getValue())+ ":success");
-							} else {
-								//Log.d(TAG, "writeCharacteristic init "+new String(bluetoothGattCharacteristicHelper.mCharacteristic.getValue())+ ":failure");
-							}
-							bluetoothGattCharacteristicHelper.mCharacteristicValue = bluetoothGattCharacteristicHelper.mCharacteristicValue.substring(MAX_CHARACTERISTIC_LENGTH);
-						} else {
-							try {
-								bluetoothGattCharacteristicHelper.mCharacteristic.setValue(bluetoothGattCharacteristicHelper.mCharacteristicValue.getBytes("ISO-8859-1"));
-							} catch (UnsupportedEncodingException e) {
-								// this should never happen because "US-ASCII" is hard-coded.
-								throw new IllegalStateException(e);
-							}
-
-							if (mBluetoothGatt.writeCharacteristic(bluetoothGattCharacteristicHelper.mCharacteristic)) {
-								//Log.d(TAG, "writeCharacteristic init "+new String(bluetoothGattCharacteristicHelper.mCharacteristic.getValue())+ ":success");
-							} else {
-								//Log.d(TAG, "writeCharacteristic init "+new String(bluetoothGattCharacteristicHelper.mCharacteristic.getValue())+ ":failure");
-							}
-							bluetoothGattCharacteristicHelper.mCharacteristicValue = "";
-							mCharacteristicRingBuffer.pop();
-						}
-					}
+				//a failed write is counted and the queue carries on with the next chunk
+				if (status != BluetoothGatt.GATT_SUCCESS && status != WRITE_NEW_CHARACTERISTIC) {
+					mWritesFailed++;
+					Log.w(TAG, mAddress + ": onCharacteristicWrite fail:" + status + " (" + mWritesFailed + " failed)");
 				}
-				//WRITE a NEW CHARACTERISTIC
-				else if (status == WRITE_NEW_CHARACTERISTIC) {
-					if ((!mCharacteristicRingBuffer.isEmpty()) && mIsWritingCharacteristic == false) {
-						BluetoothGattCharacteristicHelper bluetoothGattCharacteristicHelper = mCharacteristicRingBuffer.next();
-						if (bluetoothGattCharacteristicHelper.mCharacteristicValue.length() > MAX_CHARACTERISTIC_LENGTH) {
-
-							try {
-								bluetoothGattCharacteristicHelper.mCharacteristic.setValue(bluetoothGattCharacteristicHelper.mCharacteristicValue.substring(0, MAX_CHARACTERISTIC_LENGTH).getBytes("ISO-8859-1"));
-							} catch (UnsupportedEncodingException e) {
-								// this should never happen because "US-ASCII" is hard-coded.
-								throw new IllegalStateException(e);
-							}
-
-							if (mBluetoothGatt.writeCharacteristic(bluetoothGattCharacteristicHelper.mCharacteristic)) {
-								//Log.d(TAG, "writeCharacteristic init "+new String(bluetoothGattCharacteristicHelper.mCharacteristic.getValue())+ ":success");
-							} else {
-								//Log.d(TAG, "writeCharacteristic init "+new String(bluetoothGattCharacteristicHelper.mCharacteristic.getValue())+ ":failure");
-							}
-							bluetoothGattCharacteristicHelper.mCharacteristicValue = bluetoothGattCharacteristicHelper.mCharacteristicValue.substring(MAX_CHARACTERISTIC_LENGTH);
-						} else {
-							try {
-								bluetoothGattCharacteristicHelper.mCharacteristic.setValue(bluetoothGattCharacteristicHelper.mCharacteristicValue.getBytes("ISO-8859-1"));
-							} catch (UnsupportedEncodingException e) {
-								// this should never happen because "US-ASCII" is hard-coded.
-								throw new IllegalStateException(e);
-							}
-
-
-							if (mBluetoothGatt.writeCharacteristic(bluetoothGattCharacteristicHelper.mCharacteristic)) {
-								//Log.d(TAG, "writeCharacteristic init "+new String(bluetoothGattCharacteristicHelper.mCharacteristic.getValue())+ ":success");
-							} else {
-								//Log.d(TAG, "writeCharacteristic init "+new String(bluetoothGattCharacteristicHelper.mCharacteristic.getValue())+ ":failure");
-							}
-							bluetoothGattCharacteristicHelper.mCharacteristicValue = "";
-							mCharacteristicRingBuffer.pop();
-						}
-					}
-
-					mIsWritingCharacteristic = true;
+				//a new characteristic is picked up by the callback of the write in progress
+				if (status == WRITE_NEW_CHARACTERISTIC && mIsWritingCharacteristic)
+					return;
+				mIsWritingCharacteristic = writeNextChunk();
+				done = !mIsWritingCharacteristic;
+			}
+			BluetoothGatt current = mGatt;
+			if (done && current != null) {
+				for (IGattListener listener : mListeners)
+					listener.onGattWritesDone(current.getDevice());
+			}
+		}
 
-					//clear the buffer to prevent the lock of the mIsWritingCharacteristic
-					if (mCharacteristicRingBuffer.isFull()) {
-						mCharacteristicRingBuffer.clear();
-						mIsWritingCharacteristic = false;
-					}
-				} else
-				//CharacteristicWrite fail
-				{
-					mCharacteristicRingBuffer.clear();
-					Log.d(TAG, "onCharacteristicWrite fail:" + new String(characteristic.getValue()));
-					//Log.d(TAG, status);
-				}
+		@Override
+		public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				//the default MTU gives no more room than the CC2540 can take
+				mPayloadSize = (mtu > DEFAULT_MTU) ? mtu - ATT_HEADER_LENGTH : MAX_CHARACTERISTIC_LENGTH;
+				Log.i(TAG, mAddress + ": MTU " + mtu + ": writing " + mPayloadSize + " bytes per packet");
+			} else {
+				mPayloadSize = MAX_CHARACTERISTIC_LENGTH;
+				Log.w(TAG, mAddress + ": onMtuChanged received: " + status);
 			}
+			mtuDone();
 		}
 
 		@Override
@@ -280,7 +225,7 @@ public class BluetoothLeService extends Service {
 		                                 BluetoothGattCharacteristic characteristic,
 		                                 int status) {
 			if (status == BluetoothGatt.GATT_SUCCESS) {
-				broadcastUpdate(ACTION_DATA_AVAILABLE, gatt.getDevice(), characteristic);
+				dataAvailable(gatt.getDevice(), characteristic);
 			}
 		}
 
@@ -294,37 +239,173 @@ public class BluetoothLeService extends Service {
 		@Override
 		public void onCharacteristicChanged(BluetoothGatt gatt,
 		                                    BluetoothGattCharacteristic characteristic) {
-			broadcastUpdate(ACTION_DATA_AVAILABLE, gatt.getDevice(), characteristic);
+			dataAvailable(gatt.getDevice(), characteristic);
+		}
+
+		/* ask for a larger MTU - returns false if the request could not be made */
+		private boolean requestMtu(BluetoothGatt gatt) {
+			mPayloadSize = MAX_CHARACTERISTIC_LENGTH;
+			if (!mRequestMtu || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+				return false;
+			synchronized (mMtuTimeout) {
+				if (!gatt.requestMtu(PREFERRED_MTU)) {
+					Log.w(TAG, mAddress + ": requestMtu failed: using " + mPayloadSize + " bytes per packet");
+					return false;
+				}
+				mMtuPending = true;
+			}
+			mHandler.postDelayed(mMtuTimeout, MTU_TIMEOUT_MS);
+			return true;
+		}
+
+		//some devices never answer the MTU request - carry on with the default payload
+		private final Runnable mMtuTimeout = new Runnable() {
+			@Override
+			public void run() {
+				Log.w(TAG, mAddress + ": MTU request timed out: using " + mPayloadSize + " bytes per packet");
+				mtuDone();
+			}
+		};
+
+		/* MTU exchange finished (or timed out) - report the discovered services */
+		private void mtuDone() {
+			synchronized (mMtuTimeout) {
+				if (!mMtuPending)
+					return;
+				mMtuPending = false;
+			}
+			mHandler.removeCallbacks(mMtuTimeout);
+			BluetoothGatt gatt = mGatt;
+			if (gatt != null)
+				servicesDiscovered(gatt.getDevice());
+		}
+
+		/**
+		 * Start the GATT write of the next chunk of the message at the head of the write queue. Each message is
+		 * written from its encoded bytes, advancing an offset by up to {@code mPayloadSize} per write. Must be called
+		 * holding the connection lock.
+		 *
+		 * @return true if a write was started, false if there is nothing to write
+		 */
+		private boolean writeNextChunk() {
+			BluetoothGattCharacteristicHelper helper;
+			while ((helper = mWriteQueue.peek()) != null) {
+				int len = Math.min(mPayloadSize, helper.mData.length - helper.mOffset);
+				byte[] chunk = (len == helper.mData.length) ? helper.mData
+						: Arrays.copyOfRange(helper.mData, helper.mOffset, helper.mOffset + len);
+				helper.mOffset += len;
+				if (helper.mOffset >= helper.mData.length) {
+					mWriteQueue.poll();
+					writeQueueSpace();
+				}
+				helper.mCharacteristic.setValue(chunk);
+				if (mGatt != null && mGatt.writeCharacteristic(helper.mCharacteristic))
+					return true;
+				//no callback will follow - drop the rest of the message and move on
+				mWritesFailed++;
+				Log.w(TAG, mAddress + ": writeCharacteristic failed (" + mWritesFailed + " failed)");
+				if (helper.mOffset < helper.mData.length) {
+					mWriteQueue.poll();
+					writeQueueSpace();
+				}
+			}
+			return false;
+		}
+
+		/* queue a write and start it if nothing is being written */
+		boolean write(BluetoothGattCharacteristic characteristic, byte[] value, long timeoutMs) {
+			BluetoothGattCharacteristicHelper helper = new BluetoothGattCharacteristicHelper(characteristic, value);
+			synchronized (mWriteLock) {
+				if (!mWriteQueue.offer(helper) && !waitWriteQueue(helper, timeoutMs)) {
+					mWritesDropped++;
+					Log.w(TAG, mAddress + ": write queue full: " + mWritesDropped + " dropped");
+					return false;
+				}
+			}
+
+			//The progress of onCharacteristicWrite and writeCharacteristic is almost the same. So callback function is called directly here
+			//for details see the onCharacteristicWrite function
+			onCharacteristicWrite(mGatt, characteristic, WRITE_NEW_CHARACTERISTIC);
+			return true;
+		}
+
+		/* wait for room in the write queue and add helper to it - called holding mWriteLock */
+		private boolean waitWriteQueue(BluetoothGattCharacteristicHelper helper, long timeoutMs) {
+			if (timeoutMs == WRITE_NO_WAIT)
+				return false;
+			long deadline = System.currentTimeMillis() + timeoutMs;
+			mWriteWaiters++;
+			try {
+				while (!mWriteQueue.offer(helper)) {
+					long wait = 50; /* also recheck periodically in case a wakeup raced with us */
+					if (timeoutMs != WRITE_WAIT_FOREVER) {
+						long remain = deadline - System.currentTimeMillis();
+						if (remain <= 0)
+							return false;
+						wait = Math.min(wait, remain);
+					}
+					mWriteLock.wait(wait);
+				}
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				mWriteWaiters--;
+			}
+		}
+
+		/* wake producers waiting for room in the write queue */
+		private void writeQueueSpace() {
+			if (mWriteWaiters > 0) {
+				synchronized (mWriteLock) {
+					mWriteLock.notifyAll();
+				}
+			}
 		}
-	};
 
-	private void broadcastUpdate(final String action) {
-		final Intent intent = new Intent(action);
-		sendBroadcast(intent);
+		/* discard pending writes and any outstanding MTU exchange */
+		void release() {
+			synchronized (this) {
+				int dropped = mWriteQueue.clear();
+				if (dropped > 0)
+					Log.i(TAG, mAddress + ": discarding " + dropped + " pending writes");
+				mIsWritingCharacteristic = false;
+			}
+			writeQueueSpace();
+			synchronized (mMtuTimeout) {
+				mMtuPending = false;
+			}
+			mHandler.removeCallbacks(mMtuTimeout);
+		}
 	}
 
-	private void broadcastUpdate(final String action, BluetoothDevice device) {
-		final Intent intent = new Intent(action);
-		intent.putExtra(EXTRA_DEVICE, device);
-		sendBroadcast(intent);
+	private void servicesDiscovered(BluetoothDevice device) {
+		for (IGattListener listener : mListeners)
+			listener.onGattServicesDiscovered(device);
 	}
 
-	private void broadcastUpdate(final String action, BluetoothDevice device,
-	                             final BluetoothGattCharacteristic characteristic) {
-		final Intent intent = new Intent(action);
-		intent.putExtra(EXTRA_DEVICE, device);
-		// For all other profiles, writes the data formatted in HEX.
+	private void dataAvailable(BluetoothDevice device, BluetoothGattCharacteristic characteristic) {
 		final byte[] data = characteristic.getValue();
-		if (data != null && data.length > 0) {
-			intent.putExtra(EXTRA_DATA, new String(data));
-		}
-		sendBroadcast(intent);
+		if (data == null || data.length == 0)
+			return;
+		for (IGattListener listener : mListeners)
+			listener.onDataAvailable(device, characteristic, data);
 	}
 
 	public class LocalBinder extends Binder {
 		BluetoothLeService getService() {
 			return BluetoothLeService.this;
 		}
+
+		/* receive GATT events directly rather than through broadcasts */
+		void addListener(IGattListener listener) {
+			mListeners.addIfAbsent(listener);
+		}
+
+		void removeListener(IGattListener listener) {
+			mListeners.remove(listener);
+		}
 	}
 
 	@Override
@@ -368,6 +449,20 @@ public class BluetoothLeService extends Service {
 		return true;
 	}
 
+	/* the open connection to a device or null */
+	private GattConnection getConnection(String address) {
+		if (mBluetoothAdapter == null || address == null) {
+			Log.w(TAG, "BluetoothAdapter not initialized");
+			return null;
+		}
+		GattConnection connection = mConnections.get(address);
+		if (connection == null || connection.mGatt == null) {
+			Log.w(TAG, address + ": not connected");
+			return null;
+		}
+		return connection;
+	}
+
 	/**
 	 * Connects to the GATT server hosted on the Bluetooth LE device.
 	 *
@@ -378,6 +473,17 @@ public class BluetoothLeService extends Service {
 	 * callback.
 	 */
 	public boolean connect(final String address) {
+		return connect(address, true);
+	}
+
+	/**
+	 * Connects to the GATT server hosted on the Bluetooth LE device.
+	 *
+	 * @param address    The device address of the destination device.
+	 * @param requestMtu Negotiate a larger MTU once services are discovered.
+	 * @return Return true if the connection is initiated successfully.
+	 */
+	public boolean connect(final String address, boolean requestMtu) {
 		if (mBluetoothAdapter == null || address == null) {
 			Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
 			return false;
@@ -389,13 +495,28 @@ public class BluetoothLeService extends Service {
 			return false;
 		}
 
-		if (mConnectionState != STATE_CONNECTED) {
-			// We want to directly connect to the device, so we are setting the autoConnect
-			// parameter to false.
-			mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-			Log.d(TAG, "Trying to create a new connection.");
-			mConnectionState = STATE_CONNECTING;
+		GattConnection connection = mConnections.get(address);
+		if (connection != null && connection.mConnectionState != STATE_DISCONNECTED) {
+			if (connection.mConnectionState != STATE_CONNECTING
+					|| SystemClock.elapsedRealtime() - connection.mConnectStart < CONNECT_TIMEOUT_MS)
+				return true;
+			Log.w(TAG, address + ": replacing stale connection attempt");
+			close(address);
 		}
+
+		// We want to directly connect to the device, so we are setting the autoConnect
+		// parameter to false.
+		connection = new GattConnection(address, requestMtu);
+		connection.mConnectionState = STATE_CONNECTING;
+		connection.mConnectStart = SystemClock.elapsedRealtime();
+		mConnections.put(address, connection);
+		connection.mGatt = device.connectGatt(this, false, connection);
+		if (connection.mGatt == null) {
+			Log.w(TAG, address + ": connectGatt failed");
+			mConnections.remove(address, connection);
+			return false;
+		}
+		Log.d(TAG, address + ": Trying to create a new connection (" + mConnections.size() + " open)");
 		return true;
 	}
 
@@ -404,26 +525,37 @@ public class BluetoothLeService extends Service {
 	 * is reported asynchronously through the
 	 * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
 	 * callback.
+	 *
+	 * @param address The device address of the connection.
 	 */
-	public void disconnect() {
-		Log.d(TAG, "disconnect");
-		if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-			Log.w(TAG, "BluetoothAdapter not initialized");
-			return;
-		}
-		mBluetoothGatt.disconnect();
+	public void disconnect(String address) {
+		Log.d(TAG, "disconnect " + address);
+		GattConnection connection = getConnection(address);
+		if (connection != null)
+			connection.mGatt.disconnect();
 	}
 
 	/**
 	 * After using a given BLE device, the app must call this method to ensure resources are
 	 * released properly.
+	 *
+	 * @param address The device address of the connection.
 	 */
-	public void close() {
-		if (mBluetoothGatt == null) {
+	public void close(String address) {
+		GattConnection connection = mConnections.remove(address);
+		if (connection == null)
 			return;
+		connection.release();
+		if (connection.mGatt != null) {
+			connection.mGatt.close();
+			connection.mGatt = null;
 		}
-		mBluetoothGatt.close();
-		mBluetoothGatt = null;
+	}
+
+	/* close every connection */
+	public void close() {
+		for (String address : mConnections.keySet())
+			close(address);
 	}
 
 	/**
@@ -431,75 +563,115 @@ public class BluetoothLeService extends Service {
 	 * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
 	 * callback.
 	 *
+	 * @param address        The device address of the connection.
 	 * @param characteristic The characteristic to read from.
 	 */
-	public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-		if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-			Log.w(TAG, "BluetoothAdapter not initialized");
-			return;
-		}
-		mBluetoothGatt.readCharacteristic(characteristic);
+	public void readCharacteristic(String address, BluetoothGattCharacteristic characteristic) {
+		GattConnection connection = getConnection(address);
+		if (connection != null)
+			connection.mGatt.readCharacteristic(characteristic);
 	}
 
 	/**
-	 * Write information to the device on a given {@code BluetoothGattCharacteristic}. The content string and characteristic is
-	 * only pushed into a ring buffer. All the transmission is based on the {@code onCharacteristicWrite} call back function,
-	 * which is called directly in this function
+	 * Write information to the device on a given {@code BluetoothGattCharacteristic}. A copy of the value and the
+	 * characteristic are only pushed into the connection's write queue. All the transmission is based on the
+	 * {@code onCharacteristicWrite} call back function, which is called directly in this function
 	 *
+	 * @param address        The device address of the connection.
 	 * @param characteristic The characteristic to write to.
+	 * @param value          The value to write.
+	 * @return false if the write queue is full
 	 */
-	public void writeCharacteristic(BluetoothGattCharacteristic characteristic) {
-		if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-			Log.w(TAG, "BluetoothAdapter not initialized");
-			return;
-		}
+	public boolean writeCharacteristic(String address, BluetoothGattCharacteristic characteristic, byte[] value) {
+		return writeCharacteristic(address, characteristic, value, WRITE_NO_WAIT);
+	}
 
-		//The character size of TI CC2540 is limited to 17 bytes, otherwise characteristic can not be sent properly,
-		//so String should be cut to comply this restriction. And something should be done here:
-		String writeCharacteristicString;
-		try {
-			writeCharacteristicString = new String(characteristic.getValue(), "ISO-8859-1");
-		} catch (UnsupportedEncodingException e) {
-			// this should never happen because "US-ASCII" is hard-coded.
-			throw new IllegalStateException(e);
-		}
-		//Log.d(TAG, "allwriteCharacteristicString:"+writeCharacteristicString);
+	/**
+	 * Write information to the device on a given {@code BluetoothGattCharacteristic}, waiting for room in the
+	 * write queue if it is full.
+	 *
+	 * @param address        The device address of the connection.
+	 * @param characteristic The characteristic to write to.
+	 * @param value          The value to write.
+	 * @param timeoutMs      How long to wait for room: {@code WRITE_NO_WAIT} fails at once,
+	 *                       {@code WRITE_WAIT_FOREVER} blocks until there is room.
+	 * @return false if the write was dropped because the queue stayed full
+	 */
+	public boolean writeCharacteristic(String address, BluetoothGattCharacteristic characteristic, byte[] value,
+	                                   long timeoutMs) {
+		GattConnection connection = getConnection(address);
+		if (connection == null)
+			return false;
 
-		//As the communication is asynchronous content string and characteristic should be pushed into an ring buffer for further transmission
-		mCharacteristicRingBuffer.push(new BluetoothGattCharacteristicHelper(characteristic, writeCharacteristicString));
-		//Log.d(TAG, ("mCharacteristicRingBufferlength:"+mCharacteristicRingBuffer.size());
+		//Values longer than the payload size (17 bytes for TI CC2540 until a larger MTU is negotiated) are split
+		//across several writes. The characteristic is shared with the GATT thread, which sets each chunk just
+		//before writing it, so the queue keeps its own copy of the value.
+		if (value == null || value.length == 0)
+			return true;
+		return connection.write(characteristic, value.clone(), timeoutMs);
+	}
 
+	/* bytes of value sent per characteristic write on a connection */
+	public int getPayloadSize(String address) {
+		GattConnection connection = mConnections.get(address);
+		return (connection != null) ? connection.mPayloadSize : MAX_CHARACTERISTIC_LENGTH;
+	}
 
-		//The progress of onCharacteristicWrite and writeCharacteristic is almost the same. So callback function is called directly here
-		//for details see the onCharacteristicWrite function
-		mGattCallback.onCharacteristicWrite(mBluetoothGatt, characteristic, WRITE_NEW_CHARACTERISTIC);
+	/* a write is in progress or queued on a connection */
+	public boolean isWritePending(String address) {
+		GattConnection connection = mConnections.get(address);
+		if (connection == null)
+			return false;
+		synchronized (connection) {
+			return connection.mIsWritingCharacteristic || connection.mWriteQueue.peek() != null;
+		}
+	}
 
+	/* writes rejected because the connection's write queue was full */
+	public int getWritesDropped(String address) {
+		GattConnection connection = mConnections.get(address);
+		if (connection == null)
+			return 0;
+		synchronized (connection.mWriteLock) {
+			return connection.mWritesDropped;
+		}
+	}
+
+	/* GATT writes on a connection that reported failure */
+	public int getWritesFailed(String address) {
+		GattConnection connection = mConnections.get(address);
+		if (connection == null)
+			return 0;
+		synchronized (connection) {
+			return connection.mWritesFailed;
+		}
 	}
 
 	/**
 	 * Enables or disables notification on a give characteristic.
 	 *
+	 * @param address        The device address of the connection.
 	 * @param characteristic Characteristic to act on.
 	 * @param enabled        If true, enable notification.  False otherwise.
 	 */
-	public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+	public void setCharacteristicNotification(String address, BluetoothGattCharacteristic characteristic,
 	                                          boolean enabled) {
-		if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-			Log.w(TAG, "BluetoothAdapter not initialized");
-			return;
-		}
-		mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+		GattConnection connection = getConnection(address);
+		if (connection != null)
+			connection.mGatt.setCharacteristicNotification(characteristic, enabled);
 	}
 
 	/**
 	 * Retrieves a list of supported GATT services on the connected device. This should be
 	 * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
 	 *
+	 * @param address The device address of the connection.
 	 * @return A {@code List} of supported services.
 	 */
-	public List<BluetoothGattService> getSupportedGattServices() {
-		if (mBluetoothGatt == null) return null;
+	public List<BluetoothGattService> getSupportedGattServices(String address) {
+		GattConnection connection = getConnection(address);
+		if (connection == null) return null;
 
-		return mBluetoothGatt.getServices();
+		return connection.mGatt.getServices();
 	}
 }
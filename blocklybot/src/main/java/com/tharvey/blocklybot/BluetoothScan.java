@@ -26,8 +26,7 @@ import android.os.Build;
 import android.os.Parcelable;
 import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.Map;
+import java.util.HashSet;
 
 /**
  * Activity for scanning Bluetooth devices.
@@ -36,24 +35,27 @@ public class BluetoothScan {
 	private final static String TAG = BluetoothScan.class.getSimpleName();
 
 	private DeviceListAdapter mDeviceListAdapter;
+	private DeviceIndex mDeviceIndex;
 	private BluetoothAdapter mBluetoothAdapter;
 	private Boolean mCompatOnly;
 	private static final String SPP_UUID = "00001101-0000-1000-8000-00805F9B34FB"; /* RFComm Service */
 	private Context mContext;
 	private Boolean mScanning;
 	private IDiscover mCallback;
-	private ArrayList<BluetoothDevice> mQueryQueue;
-	private Map<String, Boolean> mKnownDevs;
+	/* addresses of devices waiting for SDP results */
+	private HashSet<String> mQueryQueue;
+	private DeviceRegistry mRegistry;
 
-	public BluetoothScan(Context context, DeviceListAdapter adapter, Map<String, Boolean> knownDevs, Boolean compatOnly, IDiscover callback) {
+	public BluetoothScan(Context context, DeviceListAdapter adapter, DeviceIndex index, DeviceRegistry registry, Boolean compatOnly, IDiscover callback) {
 		mContext = context;
-		mKnownDevs = knownDevs;
+		mDeviceIndex = index;
+		mRegistry = registry;
 		mDeviceListAdapter = adapter;
 		mCallback = callback;
 		mCompatOnly = compatOnly;
 		mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 		mScanning = false;
-		mQueryQueue = new ArrayList<>();
+		mQueryQueue = new HashSet<>();
 	}
 
 	// Create a BroadcastReceiver
@@ -67,16 +69,19 @@ public class BluetoothScan {
 			if (BluetoothDevice.ACTION_FOUND.equals(action)) {
 				// Get the BluetoothDevice object from the Intent
 				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-				if (mDeviceListAdapter.contains(device))
-					return;
 				// skip BLE devices - some such as Bluno Beetle show in BT discovery as well
 				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 && device.getType() == BluetoothDevice.DEVICE_TYPE_LE)
 					return;
+				int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) DeviceIndex.RSSI_UNKNOWN);
+				if (!mDeviceIndex.update(device, DeviceIndex.SOURCE_CLASSIC, rssi))
+					return;
 				Log.i(TAG, "Found BT device " + device.getAddress() + ":" + device.getName());
-				if (mKnownDevs.containsKey(device.getAddress())) {
-					if (mKnownDevs.get(device.getAddress())) {
+				Boolean known = mRegistry.getCompatible(device.getAddress());
+				if (known != null) {
+					if (known) {
 						Log.i(TAG, "adding known compatible device");
 						mDeviceListAdapter.addDevice(device);
+						mCallback.onFound(device);
 					} else {
 						Log.i(TAG, "skipping known uncompatible device");
 					}
@@ -88,10 +93,9 @@ public class BluetoothScan {
 					mDeviceListAdapter.addDevice(device);
 				}
 				// query services for this device
-				else if (!mQueryQueue.contains(device)) {
+				else if (mQueryQueue.add(device.getAddress())) {
 					Log.d(TAG, "Querying services for " + device);
 					mCallback.onQuery(device);
-					mQueryQueue.add(device);
 					device.fetchUuidsWithSdp();
 				}
 			}
@@ -105,7 +109,8 @@ public class BluetoothScan {
 			// When SDP records are found from the call to fetchUuidsWithSdp()
 			else if (BluetoothDevice.ACTION_UUID.equals(action)) {
 				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-				mQueryQueue.remove(device);
+				if (!mQueryQueue.remove(device.getAddress()))
+					return;
 				Boolean compatible = false;
 				Log.i(TAG, "Services discovered for " + device + " (waiting on " + mQueryQueue.size() + " more scanning=" + mScanning + ")");
 				Parcelable[] uuidExtra = intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID);
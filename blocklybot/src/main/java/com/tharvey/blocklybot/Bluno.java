@@ -19,11 +19,9 @@ package com.tharvey.blocklybot;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Handler;
 import android.os.IBinder;
@@ -37,14 +35,15 @@ public class Bluno extends Mobbob {
 	private int mBaudrate = 115200;    //set the default baud rate to 115200
 	private String mPassword = "AT+PASSWOR=DFRobot\r\n";
 	private String mBaudrateBuffer = "AT+CURRUART=" + mBaudrate + "\r\n";
-	private static BluetoothGattCharacteristic mSCharacteristic;
-	private static BluetoothGattCharacteristic mModelNumberCharacteristic;
-	private static BluetoothGattCharacteristic mSerialPortCharacteristic;
-	private static BluetoothGattCharacteristic mCommandCharacteristic;
+	private BluetoothGattCharacteristic mSCharacteristic;
+	private volatile BluetoothGattCharacteristic mModelNumberCharacteristic;
+	private volatile BluetoothGattCharacteristic mSerialPortCharacteristic;
+	private BluetoothGattCharacteristic mCommandCharacteristic;
 	private Handler mHandler;
 	private Context mContext;
 	private boolean mBound;
 	BluetoothLeService mBluetoothLeService;
+	private BluetoothLeService.LocalBinder mBinder;
 	private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics =
 			new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
 
@@ -53,37 +52,32 @@ public class Bluno extends Mobbob {
 		mContext = context;
 		mHandler = handler;
 		mBound = false;
-		context.registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
-		Intent gattServiceIntent = new Intent(context, BluetoothLeService.class);
-		context.bindService(gattServiceIntent, mServiceConnection, Context.BIND_AUTO_CREATE);
-		mBound = true;
 	}
 
-	public void serialSend(String theString) {
-		if (getConnectionState() == IConnection.connectionStateEnum.isConnected) {
-			Log.d(TAG, ">> " + theString);
-			mSCharacteristic.setValue(theString);
-			mBluetoothLeService.writeCharacteristic(mSCharacteristic);
+	/* never waits for room in the BLE write queue - callers hold the robot lock and may
+	 * be on the UI thread, a full queue drops the write and the caller fails it */
+	public boolean serialSend(byte[] data) {
+		if (getConnectionState() != IConnection.connectionStateEnum.isConnected)
+			return false;
+		Log.d(TAG, ">> " + toPrintable(data, 0, data.length));
+		if (!mBluetoothLeService.writeCharacteristic(getAddress(), mSCharacteristic, data)) {
+			Log.w(TAG, "write dropped: " + toPrintable(data, 0, data.length));
+			return false;
 		}
+		return true;
 	}
 
-	private Runnable mConnectingOverTimeRunnable = new Runnable() {
-		@Override
-		public void run() {
-			if (getConnectionState() == IConnection.connectionStateEnum.isConnecting)
-				setState(IConnection.connectionStateEnum.isToScan);
-			mBluetoothLeService.close();
-		}
-	};
+	@Override
+	public int getPayloadSize() {
+		BluetoothLeService service = mBluetoothLeService;
+		return (service != null) ? service.getPayloadSize(getAddress()) : BluetoothLeService.MAX_CHARACTERISTIC_LENGTH;
+	}
 
-	private Runnable mDisonnectingOverTimeRunnable = new Runnable() {
-		@Override
-		public void run() {
-			if (getConnectionState() == IConnection.connectionStateEnum.isDisconnecting)
-				setState(IConnection.connectionStateEnum.isToScan);
-			mBluetoothLeService.close();
-		}
-	};
+	/* ATT MTU - the payload plus the 3 byte write header */
+	@Override
+	public int getMtu() {
+		return getPayloadSize() + 3;
+	}
 
 	// Services
 	public static final String DFROBOT_BLUNO_SERVICE = "0000dfb0-0000-1000-8000-00805f9b34fb";
@@ -92,73 +86,137 @@ public class Bluno extends Mobbob {
 	private static final String CommandUUID = "0000dfb2-0000-1000-8000-00805f9b34fb";
 	private static final String ModelNumberStringUUID = "00002a24-0000-1000-8000-00805f9b34fb";
 
-	// Handles various events fired by the Service:
-	//   ACTION_GATT_CONNECTED: connected to a GATT server.
-	//   ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-	//   ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-	//   ACTION_DATA_AVAILABLE: received data from the device (read result or notification)
-	private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+	// Handles various events fired by the Service. Serial data is handled directly on the GATT
+	// callback thread to keep ack latency down, everything else is handled on the handler thread.
+	private final BluetoothLeService.IGattListener mGattListener = new BluetoothLeService.IGattListener() {
 		@Override
-		public void onReceive(Context context, Intent intent) {
-			final String action = intent.getAction();
-			BluetoothDevice device = intent.getParcelableExtra(BluetoothLeService.EXTRA_DEVICE);
-			Log.d(TAG, "Received " + action + " from " + device.getAddress() + ":" + device.getName());
-			if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-				if (getConnectionState() != IConnection.connectionStateEnum.isConnected) {
-					mHandler.removeCallbacks(mConnectingOverTimeRunnable);
+		public void onGattConnected(final BluetoothDevice device) {
+			if (!device.getAddress().equals(getAddress()))
+				return;
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					Log.d(TAG, "Connected to " + device.getAddress() + ":" + device.getName());
+					setPhase(connectPhase.SERVICE_DISCOVERY);
 				}
-			} else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-				if (getConnectionState() == IConnection.connectionStateEnum.isConnected) {
-					setState(IConnection.connectionStateEnum.isToScan);
-					mHandler.removeCallbacks(mDisonnectingOverTimeRunnable);
-					mBluetoothLeService.close();
+			});
+		}
+
+		@Override
+		public void onGattDisconnected(final BluetoothDevice device) {
+			if (!device.getAddress().equals(getAddress()))
+				return;
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					Log.d(TAG, "Disconnected from " + device.getAddress() + ":" + device.getName());
+					if (getPhase() == connectPhase.READY)
+						linkLost("GATT disconnected");
+					else
+						fail("disconnected while connecting", true);
 				}
-			} else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-				getGattServices(mBluetoothLeService.getSupportedGattServices());
-			} else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-				if (mSCharacteristic == mModelNumberCharacteristic) {
-					Log.d(TAG, "ACTION_DATA_AVAILABLE: model:" + intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
-					if (intent.getStringExtra(BluetoothLeService.EXTRA_DATA).toUpperCase().startsWith("DF BLUNO")) {
-						mBluetoothLeService.setCharacteristicNotification(mSCharacteristic, false);
-						mSCharacteristic = mCommandCharacteristic;
-						mSCharacteristic.setValue(mPassword);
-						mBluetoothLeService.writeCharacteristic(mSCharacteristic);
-						mSCharacteristic.setValue(mBaudrateBuffer);
-						mBluetoothLeService.writeCharacteristic(mSCharacteristic);
-						mSCharacteristic = mSerialPortCharacteristic;
-						mBluetoothLeService.setCharacteristicNotification(mSCharacteristic, true);
-						setState(IConnection.connectionStateEnum.isConnected);
-					} else {
-						setState(IConnection.connectionStateEnum.isToScan);
-					}
-				} else if (mSCharacteristic == mSerialPortCharacteristic) {
-					String received = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-					Log.d(TAG, "<< " + received);
-					onSerialReceived(received);
+			});
+		}
+
+		@Override
+		public void onGattServicesDiscovered(final BluetoothDevice device) {
+			if (!device.getAddress().equals(getAddress()))
+				return;
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					Log.d(TAG, "Services discovered on " + device.getAddress() + ":" + device.getName());
+					if (getPhase() != connectPhase.SERVICE_DISCOVERY)
+						return;
+					getGattServices(mBluetoothLeService.getSupportedGattServices(getAddress()));
 				}
+			});
+		}
+
+		@Override
+		public void onDataAvailable(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+		                            final byte[] data) {
+			if (!device.getAddress().equals(getAddress()))
+				return;
+			if (characteristic == mSerialPortCharacteristic
+					&& getConnectionState() == IConnection.connectionStateEnum.isConnected) {
+				Log.d(TAG, "<< " + toPrintable(data, 0, data.length));
+				onSerialData(data, 0, data.length);
+			} else if (characteristic == mModelNumberCharacteristic) {
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						onModelNumber(new String(data, CHARSET));
+					}
+				});
 			}
 		}
+
+		@Override
+		public void onGattWritesDone(BluetoothDevice device) {
+			if (!device.getAddress().equals(getAddress()))
+				return;
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					onHandshakeSent();
+				}
+			});
+		}
 	};
 
+	private void onModelNumber(String model) {
+		if (mSCharacteristic != mModelNumberCharacteristic || getPhase() != connectPhase.MODEL_READ)
+			return;
+		Log.d(TAG, "model:" + model);
+		if (model.toUpperCase().startsWith("DF BLUNO")) {
+			setPhase(connectPhase.HANDSHAKE);
+			mBluetoothLeService.setCharacteristicNotification(getAddress(), mSCharacteristic, false);
+			mSCharacteristic = mCommandCharacteristic;
+			/* ready once both writes have gone out - see onHandshakeSent() */
+			if (!mBluetoothLeService.writeCharacteristic(getAddress(), mSCharacteristic, mPassword.getBytes())
+					|| !mBluetoothLeService.writeCharacteristic(getAddress(), mSCharacteristic, mBaudrateBuffer.getBytes()))
+				fail("handshake write dropped", true);
+		} else {
+			fail("unsupported model " + model, false);
+		}
+	}
+
+	/* the password and baudrate commands have been written - switch to the serial port */
+	private void onHandshakeSent() {
+		if (mSCharacteristic != mCommandCharacteristic || getPhase() != connectPhase.HANDSHAKE)
+			return;
+		/* the first write can finish before the second is queued */
+		if (mBluetoothLeService.isWritePending(getAddress()))
+			return;
+		mSCharacteristic = mSerialPortCharacteristic;
+		mBluetoothLeService.setCharacteristicNotification(getAddress(), mSCharacteristic, true);
+		setPhase(connectPhase.READY);
+	}
+
 	// Code to manage Service lifecycle.
 	ServiceConnection mServiceConnection = new ServiceConnection() {
 
 		@Override
 		public void onServiceConnected(ComponentName componentName, IBinder service) {
 			Log.i(TAG, "mServiceConnection onServiceConnected");
-			mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+			mBinder = (BluetoothLeService.LocalBinder) service;
+			mBluetoothLeService = mBinder.getService();
+			mBinder.addListener(mGattListener);
 			if (mBluetoothLeService.initialize()) {
-				connect();
+				if (getPhase() == connectPhase.LINK_CONNECT && !mBluetoothLeService.connect(getAddress()))
+					fail("unable to connect", true);
 			} else {
 				Log.e(TAG, "Unable to initialize Bluetooth");
 				mBluetoothLeService = null;
+				fail("unable to initialize Bluetooth", false);
 			}
 		}
 
 		@Override
 		public void onServiceDisconnected(ComponentName componentName) {
 			Log.i(TAG, "mServiceConnection onServiceDisconnected");
-			mBluetoothLeService.disconnect();
+			mBluetoothLeService.disconnect(getAddress());
 			mBluetoothLeService = null;
 		}
 	};
@@ -197,40 +255,47 @@ public class Bluno extends Mobbob {
 		}
 
 		if (mModelNumberCharacteristic == null || mSerialPortCharacteristic == null || mCommandCharacteristic == null) {
-			setState(IConnection.connectionStateEnum.isToScan);
+			fail("missing Bluno characteristics", false);
 		} else {
+			setPhase(connectPhase.MODEL_READ);
 			mSCharacteristic = mModelNumberCharacteristic;
-			mBluetoothLeService.setCharacteristicNotification(mSCharacteristic, true);
-			mBluetoothLeService.readCharacteristic(mSCharacteristic);
+			mBluetoothLeService.setCharacteristicNotification(getAddress(), mSCharacteristic, true);
+			mBluetoothLeService.readCharacteristic(getAddress(), mSCharacteristic);
 		}
 	}
 
-	private static IntentFilter makeGattUpdateIntentFilter() {
-		final IntentFilter intentFilter = new IntentFilter();
-		intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-		intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-		intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-		intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-		return intentFilter;
-	}
-
 	public synchronized int connect() {
 		Log.d(TAG, "connect " + toString());
 		if (!mBound) {
-			mContext.registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
 			Intent gattServiceIntent = new Intent(mContext, BluetoothLeService.class);
 			mContext.bindService(gattServiceIntent, mServiceConnection, Context.BIND_AUTO_CREATE);
 			mBound = true;
 		}
+		/* not bound yet - onServiceConnected() connects */
+		if (mBluetoothLeService == null)
+			return 0;
 		return (mBluetoothLeService.connect(getAddress()) ? 0 : 1);
 	}
 
+	@Override
+	protected void abortConnect() {
+		BluetoothLeService service = mBluetoothLeService;
+		if (service != null)
+			service.close(getAddress());
+	}
+
 	public synchronized void disconnect() {
 		Log.d(TAG, "disconnect " + toString());
+		stopConnect();
+		RobotRegistry.unregister(this);
 		if (mBound) {
-			mBluetoothLeService.disconnect();
+			/* null if the bind never completed or the service failed to initialize */
+			BluetoothLeService service = mBluetoothLeService;
+			if (service != null)
+				service.disconnect(getAddress());
+			if (mBinder != null)
+				mBinder.removeListener(mGattListener);
 			mContext.unbindService(mServiceConnection);
-			mContext.unregisterReceiver(mGattUpdateReceiver);
 			mBound = false;
 		}
 	}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Tim Harvey <harvey.tim@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tharvey.blocklybot;
+
+/**
+ * Completion signal for an asynchronous function
+ *
+ * The function calls start() when it begins and done() from its completion callback,
+ * callers block in await() until then instead of polling. fail() releases the callers
+ * with an error when the function can never complete.
+ */
+public class Completion {
+	private boolean mPending = false;
+	private boolean mFailed = false;
+
+	public synchronized void start() {
+		mPending = true;
+		mFailed = false;
+	}
+
+	public synchronized void done() {
+		mPending = false;
+		notifyAll();
+	}
+
+	/* abandon the function - await() returns false until the next start() */
+	public synchronized void fail() {
+		mPending = false;
+		mFailed = true;
+		notifyAll();
+	}
+
+	public synchronized boolean isPending() {
+		return mPending;
+	}
+
+	public synchronized boolean isFailed() {
+		return mFailed;
+	}
+
+	/* block until done() - returns false on failure, timeout or interrupt (timeoutMs <= 0 waits forever) */
+	public synchronized boolean await(long timeoutMs) {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		try {
+			while (mPending) {
+				if (timeoutMs <= 0) {
+					wait();
+				} else {
+					long remain = deadline - System.currentTimeMillis();
+					if (remain <= 0)
+						return false;
+					wait(remain);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return !mFailed;
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 Tim Harvey <harvey.tim@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tharvey.blocklybot;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Devices seen during discovery keyed by address
+ *
+ * Shared by the Bluetooth and Bluetooth LE scanners so that repeated sightings are
+ * recognised with a hash lookup. Each entry records which scanner saw it, the last RSSI
+ * and when it was last seen so that devices which have gone away can be expired.
+ */
+public class DeviceIndex {
+	/* scanners a device can be seen by */
+	public final static int SOURCE_CLASSIC = 1;
+	public final static int SOURCE_LE = 2;
+
+	/* RSSI when the scanner did not report one */
+	public final static int RSSI_UNKNOWN = Short.MIN_VALUE;
+
+	public static class Entry {
+		final BluetoothDevice mDevice;
+		volatile int mSources;
+		volatile int mRssi = RSSI_UNKNOWN;
+		volatile long mLastSeen;
+
+		Entry(BluetoothDevice device) {
+			mDevice = device;
+		}
+
+		public BluetoothDevice getDevice() {
+			return mDevice;
+		}
+
+		public int getRssi() {
+			return mRssi;
+		}
+
+		/* SystemClock.elapsedRealtime() of the last sighting */
+		public long getLastSeen() {
+			return mLastSeen;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+
+	/* record a sighting - returns true the first time the device is seen by this source */
+	public boolean update(BluetoothDevice device, int source, int rssi) {
+		String address = device.getAddress();
+		Entry entry = mEntries.get(address);
+		if (entry == null) {
+			Entry created = new Entry(device);
+			entry = mEntries.putIfAbsent(address, created);
+			if (entry == null)
+				entry = created;
+		}
+		entry.mLastSeen = SystemClock.elapsedRealtime();
+		if (rssi != RSSI_UNKNOWN)
+			entry.mRssi = rssi;
+		synchronized (entry) {
+			if ((entry.mSources & source) != 0)
+				return false;
+			entry.mSources |= source;
+			return true;
+		}
+	}
+
+	public Entry get(String address) {
+		return mEntries.get(address);
+	}
+
+	public boolean contains(String address) {
+		return mEntries.containsKey(address);
+	}
+
+	public int size() {
+		return mEntries.size();
+	}
+
+	/* remove devices of the given sources not seen for maxAgeMs and return them */
+	public List<BluetoothDevice> expire(int sources, long maxAgeMs) {
+		List<BluetoothDevice> expired = new ArrayList<BluetoothDevice>();
+		long now = SystemClock.elapsedRealtime();
+		Iterator<Entry> it = mEntries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if ((entry.mSources & sources) != 0 && now - entry.mLastSeen > maxAgeMs) {
+				it.remove();
+				expired.add(entry.mDevice);
+			}
+		}
+		return expired;
+	}
+
+	public void clear() {
+		mEntries.clear();
+	}
+}
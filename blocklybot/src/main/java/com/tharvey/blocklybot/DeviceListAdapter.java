@@ -25,10 +25,13 @@ import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 
 // Adapter for holding devices found through scanning.
 public class DeviceListAdapter extends BaseAdapter {
 	private ArrayList<BluetoothDevice> mDevices;
+	/* addresses of mDevices for fast lookup */
+	private HashSet<String> mAddresses;
 	private LayoutInflater mInflator;
 
 	static class ViewHolder {
@@ -39,18 +42,26 @@ public class DeviceListAdapter extends BaseAdapter {
 	public DeviceListAdapter(Activity context) {
 		super();
 		mDevices = new ArrayList<BluetoothDevice>();
+		mAddresses = new HashSet<String>();
 		mInflator = context.getLayoutInflater();
 	}
 
 	public void addDevice(BluetoothDevice device) {
-		if (!mDevices.contains(device)) {
+		if (mAddresses.add(device.getAddress())) {
 			mDevices.add(device);
 			notifyDataSetChanged();
 		}
 	}
 
+	public void removeDevice(BluetoothDevice device) {
+		if (mAddresses.remove(device.getAddress())) {
+			mDevices.remove(device);
+			notifyDataSetChanged();
+		}
+	}
+
 	public boolean contains(BluetoothDevice device) {
-		return mDevices.contains(device);
+		return mAddresses.contains(device.getAddress());
 	}
 
 	public BluetoothDevice getDevice(int position) {
@@ -59,6 +70,7 @@ public class DeviceListAdapter extends BaseAdapter {
 
 	public void clear() {
 		mDevices.clear();
+		mAddresses.clear();
 		notifyDataSetChanged();
 	}
 
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2016 Tim Harvey <harvey.tim@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tharvey.blocklybot;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persistent store of devices found by discovery
+ *
+ * Devices are kept in memory keyed by address and persisted to an append-only file with
+ * one JSON record per line - the last record for an address wins. Updates only append
+ * the changed device and are written by a background thread. The file is also loaded by
+ * that thread, callers only wait for it if they use the registry before it has loaded.
+ * The file is rewritten with one line per device when it has grown well past the number
+ * of devices.
+ */
+public class DeviceRegistry {
+	private final static String TAG = DeviceRegistry.class.getSimpleName();
+
+	private final static String FILE_NAME = "devices.jsonl";
+	/* the JSON map of address to compatibility used by older versions */
+	private final static String COMPATDEVS_PREF = "pref_knowncompatibledevs";
+	/* compact once the file holds this many more lines than devices */
+	private final static int COMPACT_SLACK = 64;
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	private static DeviceRegistry mInstance;
+
+	/* What is known about one device */
+	public static class Device {
+		String mAddress;
+		String mName;
+		Boolean mCompatible; /* null if not yet known */
+		int mType; /* BluetoothDevice.DEVICE_TYPE_* */
+		int mRssi = DeviceIndex.RSSI_UNKNOWN;
+		long mLastSeen; /* wall clock ms */
+		int mMtu; /* 0 if not connected yet or the link has none */
+		int mProtocol; /* 0 if not connected yet */
+
+		Device(String address) {
+			mAddress = address;
+		}
+
+		Device(Device d) {
+			mAddress = d.mAddress;
+			mName = d.mName;
+			mCompatible = d.mCompatible;
+			mType = d.mType;
+			mRssi = d.mRssi;
+			mLastSeen = d.mLastSeen;
+			mMtu = d.mMtu;
+			mProtocol = d.mProtocol;
+		}
+
+		public String getAddress() {
+			return mAddress;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public Boolean getCompatible() {
+			return mCompatible;
+		}
+
+		public int getType() {
+			return mType;
+		}
+
+		public int getRssi() {
+			return mRssi;
+		}
+
+		public long getLastSeen() {
+			return mLastSeen;
+		}
+
+		public int getMtu() {
+			return mMtu;
+		}
+
+		public int getProtocol() {
+			return mProtocol;
+		}
+
+		JSONObject toJSON() throws JSONException {
+			JSONObject json = new JSONObject();
+			json.put("addr", mAddress);
+			if (mName != null)
+				json.put("name", mName);
+			if (mCompatible != null)
+				json.put("compatible", mCompatible.booleanValue());
+			json.put("type", mType);
+			json.put("rssi", mRssi);
+			json.put("lastSeen", mLastSeen);
+			json.put("mtu", mMtu);
+			json.put("protocol", mProtocol);
+			return json;
+		}
+
+		static Device fromJSON(JSONObject json) throws JSONException {
+			Device d = new Device(json.getString("addr"));
+			d.mName = json.optString("name", null);
+			if (json.has("compatible"))
+				d.mCompatible = json.getBoolean("compatible");
+			d.mType = json.optInt("type", 0);
+			d.mRssi = json.optInt("rssi", DeviceIndex.RSSI_UNKNOWN);
+			d.mLastSeen = json.optLong("lastSeen", 0);
+			d.mMtu = json.optInt("mtu", 0);
+			d.mProtocol = json.optInt("protocol", 0);
+			return d;
+		}
+	}
+
+	private final File mFile;
+	private final HashMap<String, Device> mDevices = new HashMap<String, Device>();
+	/* records waiting to be appended */
+	private final ArrayList<String> mPending = new ArrayList<String>();
+	private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+	private boolean mFlushQueued;
+	/* lines in the file - touched only by the writer thread */
+	private int mLines;
+	/* pending until the file has been loaded */
+	private final Completion mLoaded = new Completion();
+
+	private DeviceRegistry(Context context) {
+		mFile = new File(context.getFilesDir(), FILE_NAME);
+		final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+		mLoaded.start();
+		mWriter.execute(new Runnable() {
+			@Override
+			public void run() {
+				load();
+				migrate(preferences);
+				mLoaded.done();
+			}
+		});
+	}
+
+	/* the registry - loading from disk starts in the background the first time it is used */
+	public static synchronized DeviceRegistry get(Context context) {
+		if (mInstance == null)
+			mInstance = new DeviceRegistry(context.getApplicationContext());
+		return mInstance;
+	}
+
+	/* wait for the file to be loaded before using the devices */
+	private void awaitLoaded() {
+		mLoaded.await(0);
+	}
+
+	private void load() {
+		if (!mFile.exists())
+			return;
+		truncateTornRecord();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), UTF8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				mLines++;
+				try {
+					Device d = Device.fromJSON(new JSONObject(line));
+					synchronized (this) {
+						mDevices.put(d.mAddress, d);
+					}
+				} catch (JSONException e) {
+					Log.w(TAG, "skipping bad record: " + line);
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading " + mFile + ": " + e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		Log.i(TAG, "loaded " + mDevices.size() + " devices from " + mLines + " records");
+	}
+
+	/* drop a partial last line left by an interrupted write so the next append starts on
+	 * a line of its own rather than being glued onto it */
+	private void truncateTornRecord() {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(mFile, "rw");
+			long end = file.length();
+			while (end > 0) {
+				file.seek(end - 1);
+				if (file.read() == '\n')
+					break;
+				end--;
+			}
+			if (end < file.length()) {
+				Log.w(TAG, "dropping " + (file.length() - end) + " bytes of torn record");
+				file.setLength(end);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Error repairing " + mFile + ": " + e);
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/* import the device list kept in preferences by older versions */
+	private void migrate(SharedPreferences preferences) {
+		String old = preferences.getString(COMPATDEVS_PREF, null);
+		if (old == null)
+			return;
+		try {
+			JSONObject json = new JSONObject(old);
+			Iterator<String> keyItr = json.keys();
+			while (keyItr.hasNext()) {
+				String address = keyItr.next();
+				synchronized (this) {
+					if (mDevices.containsKey(address))
+						continue;
+					Device d = entry(address);
+					d.mCompatible = json.getBoolean(address);
+					upsert(d);
+				}
+			}
+			Log.i(TAG, "migrated " + json.length() + " devices from preferences");
+		} catch (JSONException e) {
+			Log.e(TAG, "Error: " + e);
+		}
+		preferences.edit().remove(COMPATDEVS_PREF).apply();
+	}
+
+	/* a copy of what is known about a device or null */
+	public Device getDevice(String address) {
+		awaitLoaded();
+		synchronized (this) {
+			Device d = mDevices.get(address);
+			return (d != null) ? new Device(d) : null;
+		}
+	}
+
+	/* compatibility of a device or null if it has not been checked */
+	public Boolean getCompatible(String address) {
+		awaitLoaded();
+		synchronized (this) {
+			Device d = mDevices.get(address);
+			return (d != null) ? d.mCompatible : null;
+		}
+	}
+
+	public List<Device> getDevices() {
+		awaitLoaded();
+		synchronized (this) {
+			List<Device> devices = new ArrayList<Device>();
+			for (Device d : mDevices.values())
+				devices.add(new Device(d));
+			return devices;
+		}
+	}
+
+	private Device entry(String address) {
+		Device d = mDevices.get(address);
+		if (d == null) {
+			d = new Device(address);
+			mDevices.put(address, d);
+		}
+		return d;
+	}
+
+	/* record the result of checking a device found by discovery */
+	public void setCompatible(BluetoothDevice device, boolean compatible, int rssi) {
+		awaitLoaded();
+		synchronized (this) {
+			Device d = entry(device.getAddress());
+			d.mCompatible = compatible;
+			d.mName = device.getName();
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+				d.mType = device.getType();
+			if (rssi != DeviceIndex.RSSI_UNKNOWN)
+				d.mRssi = rssi;
+			d.mLastSeen = System.currentTimeMillis();
+			upsert(d);
+		}
+	}
+
+	/* record the link parameters negotiated with a connected robot */
+	public void setLink(BluetoothDevice device, int mtu, int protocol) {
+		awaitLoaded();
+		synchronized (this) {
+			Device d = entry(device.getAddress());
+			d.mCompatible = true;
+			d.mName = device.getName();
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+				d.mType = device.getType();
+			d.mMtu = mtu;
+			d.mProtocol = protocol;
+			d.mLastSeen = System.currentTimeMillis();
+			upsert(d);
+		}
+	}
+
+	/* queue a record for the device and schedule a flush if one isn't pending */
+	private void upsert(Device d) {
+		try {
+			mPending.add(d.toJSON().toString());
+		} catch (JSONException e) {
+			Log.e(TAG, "Error: " + e);
+			return;
+		}
+		if (!mFlushQueued) {
+			mFlushQueued = true;
+			mWriter.execute(mFlush);
+		}
+	}
+
+	/* append pending records on the writer thread, compacting the file if worthwhile */
+	private final Runnable mFlush = new Runnable() {
+		@Override
+		public void run() {
+			List<String> records;
+			List<String> snapshot = null;
+			synchronized (DeviceRegistry.this) {
+				mFlushQueued = false;
+				records = new ArrayList<String>(mPending);
+				mPending.clear();
+				if (mLines + records.size() > mDevices.size() + COMPACT_SLACK) {
+					snapshot = new ArrayList<String>();
+					for (Device d : mDevices.values()) {
+						try {
+							snapshot.add(d.toJSON().toString());
+						} catch (JSONException e) {
+							Log.e(TAG, "Error: " + e);
+						}
+					}
+				}
+			}
+			if (snapshot == null || !compact(snapshot)) {
+				if (!records.isEmpty())
+					append(records);
+			}
+		}
+	};
+
+	private boolean write(File file, List<String> records, boolean append) {
+		OutputStream out = null;
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (String record : records)
+				sb.append(record).append('\n');
+			out = new FileOutputStream(file, append);
+			out.write(sb.toString().getBytes(UTF8));
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "Error writing " + file + ": " + e);
+			return false;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void append(List<String> records) {
+		if (write(mFile, records, true))
+			mLines += records.size();
+	}
+
+	/* rewrite the file with one record per device - renamed into place so it is never partial */
+	private boolean compact(List<String> records) {
+		File tmp = new File(mFile.getPath() + ".tmp");
+		if (!write(tmp, records, false) || !tmp.renameTo(mFile)) {
+			Log.e(TAG, "compaction failed");
+			return false;
+		}
+		Log.i(TAG, "compacted " + mLines + " records to " + records.size());
+		mLines = records.size();
+		return true;
+	}
+}
@@ -26,7 +26,6 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Handler;
-import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AlertDialog;
@@ -38,11 +37,8 @@ import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.Toast;
 
-import org.json.JSONObject;
-
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Show a dialog with scan results
@@ -56,14 +52,29 @@ public class DiscoverySelector {
 	private BluetoothScan mBTScan;
 	private Handler mHandler;
 	private DeviceListAdapter mDeviceListAdapter;
+	/* devices seen by either scanner */
+	private DeviceIndex mDeviceIndex;
 	private SharedPreferences mPreferences;
 	private Dialog mDialog;
 	private ProgressBar mProgress;
-	private static final String COMPATDEVS_PREF = "pref_knowncompatibledevs";
-	private Map<String, Boolean> mKnownDevs;
+	private DeviceRegistry mRegistry;
 	private IConnection mListener;
 	private String mPhase;
 	private int mCount;
+	private boolean mBTActive;
+	private boolean mBLEActive;
+	private boolean mEarlyStopPending;
+	/* time allowed after a known robot is found for others nearby to show up */
+	private static final long EARLY_STOP_MS = 2000;
+	/* link timeout for the silent reattach on startup */
+	private static final long QUICK_LINK_TIMEOUT_MS = 4000;
+	/* how long to wait for the greeting bounce before carrying on */
+	private static final long BOUNCE_TIMEOUT_MS = 5000;
+
+	/* the reattach in progress - later callers join it rather than starting another */
+	private static boolean mReconnecting;
+	private static final List<IConnection> mReconnectListeners = new ArrayList<IConnection>();
+	private static Activity mReconnectActivity;
 
 	public DiscoverySelector(Activity activity, IConnection listener) {
 		mActivity = activity;
@@ -85,6 +96,7 @@ public class DiscoverySelector {
 
 		// Initializes list view adapter.
 		mDeviceListAdapter = new DeviceListAdapter(mActivity);
+		mDeviceIndex = new DeviceIndex();
 		Boolean compatOnly = mPreferences.getBoolean("pref_filterincompatible", true);
 		Boolean scanBT = mPreferences.getBoolean("pref_scanBT", true);
 		Boolean scanBLE = mPreferences.getBoolean("pref_scanBLE", true);
@@ -101,91 +113,106 @@ public class DiscoverySelector {
 			scanBLE = false;
 		}
 
-		// read list of known devices cached from previous scans
-		mKnownDevs = new HashMap<String, Boolean>();
-		try {
-			JSONObject json = new JSONObject(mPreferences.getString(COMPATDEVS_PREF, ""));
-			Iterator<String> keyItr = json.keys();
-			while (keyItr.hasNext()) {
-				String k = keyItr.next();
-				Boolean v = (Boolean) json.get(k);
-				mKnownDevs.put(k, v);
-			}
-		} catch (Exception e) {
-			Log.e(TAG, "Error: " + e);
-		}
-		Log.d(TAG, "Read list of known devs:");
-		for (String s : mKnownDevs.keySet())
-			Log.d(TAG, s + ":" + mKnownDevs.get(s));
+		// devices found by previous scans
+		mRegistry = DeviceRegistry.get(mActivity);
 
 		// BluetoothScanner
-		if (scanBT) {
-			mBTScan = new BluetoothScan(mActivity, mDeviceListAdapter, mKnownDevs, compatOnly, new IDiscover() {
-				@Override
-				public void onDiscover(BluetoothDevice device, Boolean compatible) {
-					cacheDevice(device, compatible);
-				}
-
-				@Override
-				public void onQuery(BluetoothDevice device) {
-					mCount++;
-					updateTitle();
-				}
-
-				@Override
-				public void onDiscoveryComplete() {
-					Log.i(TAG, "BT Discovery Complete");
-					if (mBLEScan != null) {
-						mPhase = "Bluetooth LE";
-						updateTitle();
-						mBLEScan.start();
-					} else {
-						mProgress.setVisibility(View.INVISIBLE);
-						mPhase = "";
-						mCount = 0;
-						updateTitle();
-					}
-				}
-			});
-		}
+		if (scanBT)
+			mBTScan = new BluetoothScan(mActivity, mDeviceListAdapter, mDeviceIndex, mRegistry, compatOnly, discoverCallback(false));
 
 		// BLEScanner
 		if (scanBLE) {
-			mBLEScan = new BLEScan(mActivity, mDeviceListAdapter, mKnownDevs, compatOnly, new IDiscover() {
-				@Override
-				public void onDiscover(BluetoothDevice device, Boolean compatible) {
-					cacheDevice(device, compatible);
-				}
-
-				@Override
-				public void onQuery(BluetoothDevice device) {
-					mCount++;
-					updateTitle();
-				}
-
-				@Override
-				public void onDiscoveryComplete() {
-					Log.i(TAG, "BLE Discovery Complete");
-					mProgress.setVisibility(View.INVISIBLE);
-					mPhase = "";
-					mCount = 0;
-					updateTitle();
-				}
-			});
+			mBLEScan = new BLEScan(mActivity, mDeviceListAdapter, mDeviceIndex, mRegistry, compatOnly, discoverCallback(true));
+			mBLEScan.setMaxProbes(Integer.parseInt(mPreferences.getString("pref_maxprobes",
+					String.valueOf(BLEScan.MAX_PROBES))));
 		}
 	}
 
-	/* store device in preference cache with compatibility flag for later use */
+	/* callbacks from either scanner - progress is merged across both */
+	private IDiscover discoverCallback(final boolean ble) {
+		return new IDiscover() {
+			@Override
+			public void onDiscover(BluetoothDevice device, Boolean compatible) {
+				cacheDevice(device, compatible);
+			}
+
+			@Override
+			public void onFound(BluetoothDevice device) {
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						onKnownRobot();
+					}
+				});
+			}
+
+			@Override
+			public void onQuery(BluetoothDevice device) {
+				mCount++;
+				updateTitle();
+			}
+
+			@Override
+			public void onDiscoveryComplete() {
+				Log.i(TAG, (ble ? "BLE" : "BT") + " Discovery Complete");
+				if (ble)
+					mBLEActive = false;
+				else
+					mBTActive = false;
+				updatePhase();
+			}
+		};
+	}
+
+	/*
+	 * A robot we have used before is in range - stop scanning shortly so it can be picked
+	 * without waiting for the slowest scanner. Kept scanning when driving several robots.
+	 */
+	private void onKnownRobot() {
+		if (!mBTActive && !mBLEActive)
+			return;
+		if (mPreferences.getBoolean("pref_multirobot", false))
+			return;
+		if (!mEarlyStopPending) {
+			Log.i(TAG, "known robot found - stopping discovery in " + EARLY_STOP_MS + "ms");
+			mEarlyStopPending = true;
+			mHandler.postDelayed(mEarlyStop, EARLY_STOP_MS);
+		}
+	}
+
+	private final Runnable mEarlyStop = new Runnable() {
+		@Override
+		public void run() {
+			mEarlyStopPending = false;
+			stop();
+		}
+	};
+
+	/* title and progress for whichever scanners are still running */
+	private void updatePhase() {
+		if (mBTActive && mBLEActive)
+			mPhase = "Bluetooth + LE";
+		else if (mBTActive)
+			mPhase = "Bluetooth";
+		else if (mBLEActive)
+			mPhase = "Bluetooth LE";
+		else {
+			mPhase = "";
+			mCount = 0;
+			mHandler.removeCallbacks(mEarlyStop);
+			mEarlyStopPending = false;
+			if (mProgress != null)
+				mProgress.setVisibility(View.INVISIBLE);
+		}
+		updateTitle();
+	}
+
+	/* store device in the registry with compatibility flag for later use */
 	private void cacheDevice(BluetoothDevice device, Boolean compatible) {
 		Log.i(TAG, "cacheDevice: " + device.getName() + ":" + device.getAddress() + ":" + compatible);
-		mKnownDevs.put(device.getAddress(), compatible);
-		JSONObject json = new JSONObject(mKnownDevs);
-		Log.d(TAG, "Write list of known devs:");
-		for (String s : mKnownDevs.keySet())
-			Log.d(TAG, s + ":" + mKnownDevs.get(s));
-		SharedPreferences.Editor editor = mPreferences.edit();
-		editor.putString(COMPATDEVS_PREF, json.toString());
-		editor.commit();
+		DeviceIndex.Entry entry = mDeviceIndex.get(device.getAddress());
+		mRegistry.setCompatible(device, compatible,
+				(entry != null) ? entry.getRssi() : DeviceIndex.RSSI_UNKNOWN);
 	}
 
 	/* stop scanning */
@@ -195,26 +222,20 @@ public class DiscoverySelector {
 			mBLEScan.stop();
 		if (mBTScan != null)
 			mBTScan.stop();
-		mPhase = "";
-		mCount = 0;
-		updateTitle();
-		mProgress.setVisibility(View.INVISIBLE);
+		mBTActive = false;
+		mBLEActive = false;
+		updatePhase();
 	}
 
-	/* start scanning */
+	/* start both scanners - results from each stream into the list as they arrive */
 	private void start() {
 		Log.i(TAG, "start()");
 		mProgress.setVisibility(View.VISIBLE);
-		/* if BT enabled, scan it first - BLE will be started when its complete */
-		if (mBTScan != null) {
-			mPhase = "Bluetooth";
-			updateTitle();
-			mBTScan.start();
-		} else if (mBLEScan != null) {
-			mPhase = "Bluetooth LE";
-			updateTitle();
-			mBLEScan.start();
-		}
+		mDeviceIndex.clear();
+		mCount = 0;
+		mBTActive = (mBTScan != null) && mBTScan.start();
+		mBLEActive = (mBLEScan != null) && mBLEScan.start();
+		updatePhase();
 	}
 
 	private void updateTitle() {
@@ -228,10 +249,9 @@ public class DiscoverySelector {
 	/* popup dialog */
 	public Dialog showDialog() {
 		Log.i(TAG, "showDialog");
-		// Disconnect from any currently connected Robot
-		Robot robot = Mobbob.getRobot();
-		if (robot != null)
-			robot.disconnect();
+		// Disconnect from any currently connected Robot unless driving several at once
+		if (!mPreferences.getBoolean("pref_multirobot", false))
+			RobotRegistry.disconnectAll();
 
 		// make sure we have bluetooth
 		BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
@@ -274,54 +294,161 @@ public class DiscoverySelector {
 		return mDialog;
 	}
 
+	/* create a robot for the device and wait for it to connect - null on failure */
+	private Mobbob openRobot(BluetoothDevice device, int type, boolean quick) {
+		Robot previous = RobotRegistry.get(device.getAddress());
+		if (previous != null)
+			previous.disconnect();
+		if (!mPreferences.getBoolean("pref_multirobot", false))
+			RobotRegistry.disconnectAll();
+		Mobbob robot;
+		// BLE device
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+				&& type == BluetoothDevice.DEVICE_TYPE_LE) {
+			robot = new Bluno(mActivity, mHandler, device);
+		}
+		// Bluetooth device
+		else {
+			robot = new Bluetooth(mActivity, mHandler, device);
+		}
+		robot.setConnectionListener(mListener);
+		if (quick)
+			robot.startConnect(0, QUICK_LINK_TIMEOUT_MS);
+		else
+			robot.startConnect();
+		/* every phase has a timeout so this returns once connected or given up */
+		if (!robot.awaitConnected(0)) {
+			Log.e(TAG, "Failed connectting to " + device.getName() + ":" + device.getAddress());
+			robot.disconnect();
+			return null;
+		}
+		Log.i(TAG, "Connected to " + device.getName() + ":" + device.getAddress());
+		// save last connected robot in preferences
+		SharedPreferences.Editor editor = mPreferences.edit();
+		editor.putString("device_addr", device.getAddress());
+		editor.putString("device_name", device.getName());
+		editor.commit();
+		Log.i(TAG, "saved " + device + " as autoconnect device");
+		return robot;
+	}
+
+	/* greet the user and record what was negotiated */
+	private void onRobotReady(BluetoothDevice device, Mobbob robot) {
+		robot.doFunction(null, Mobbob.commands.BOUNCE.ordinal(), 1);
+		if (!robot.waitComplete(BOUNCE_TIMEOUT_MS))
+			Log.w(TAG, "no ack for bounce from " + device.getAddress());
+		mRegistry.setLink(device, robot.getMtu(), robot.getProtocolVersion());
+	}
+
+	/*
+	 * Reattach to the last connected robot without scanning if AutoAttach is enabled. The
+	 * preferences are checked before anything touches Bluetooth so there is no prompt to
+	 * enable it, and the scan dialog is shown only if the robot can't be reached. Only one
+	 * reattach runs at a time, callers while it runs get its state changes and the robot
+	 * (or the scan dialog) goes to the last of them.
+	 */
+	public static void reconnect(Activity activity, IConnection listener) {
+		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(activity);
+		if (!preferences.getBoolean("pref_sync", true))
+			return;
+		String address = preferences.getString("device_addr", null);
+		if (address == null || !BluetoothAdapter.checkBluetoothAddress(address))
+			return;
+		BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+		if (adapter == null || !adapter.isEnabled())
+			return;
+		synchronized (DiscoverySelector.class) {
+			if (listener != null)
+				mReconnectListeners.add(listener);
+			mReconnectActivity = activity;
+			if (mReconnecting)
+				return;
+			mReconnecting = true;
+		}
+		new DiscoverySelector(activity, mReconnectListener).reconnect(address);
+	}
+
+	/* passes state changes during the reattach to everyone waiting on it */
+	private static final IConnection mReconnectListener = new IConnection() {
+		@Override
+		public void connectionStateChanged(connectionStateEnum state) {
+			List<IConnection> listeners;
+			synchronized (DiscoverySelector.class) {
+				listeners = new ArrayList<IConnection>(mReconnectListeners);
+			}
+			for (IConnection listener : listeners)
+				listener.connectionStateChanged(state);
+		}
+	};
+
+	/* the reattach is over - hand the robot to the last caller or show it the scan dialog */
+	private static void reconnectDone(Mobbob robot) {
+		final Activity activity;
+		final IConnection listener;
+		synchronized (DiscoverySelector.class) {
+			activity = mReconnectActivity;
+			listener = mReconnectListeners.isEmpty() ? null
+					: mReconnectListeners.get(mReconnectListeners.size() - 1);
+			mReconnectListeners.clear();
+			mReconnectActivity = null;
+			mReconnecting = false;
+		}
+		if (robot != null) {
+			robot.setConnectionListener(listener);
+			return;
+		}
+		if (activity == null || activity.isFinishing())
+			return;
+		activity.runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				new DiscoverySelector(activity, listener).showDialog();
+			}
+		});
+	}
+
+	/* a single short attempt - the scan dialog is the fallback */
+	private void reconnect(String address) {
+		final BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+		/* the stack only knows the type of devices it has seen - fall back to what we recorded */
+		int type = BluetoothDevice.DEVICE_TYPE_UNKNOWN;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+			type = device.getType();
+		DeviceRegistry.Device known = mRegistry.getDevice(address);
+		if (type == BluetoothDevice.DEVICE_TYPE_UNKNOWN && known != null)
+			type = known.getType();
+		final int deviceType = type;
+		Log.i(TAG, "reconnecting to " + mPreferences.getString("device_name", "") + ":" + address);
+		Toast.makeText(mActivity.getApplicationContext(),
+				"Connecting to " + mPreferences.getString("device_name", address),
+				Toast.LENGTH_SHORT).show();
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				Mobbob robot = openRobot(device, deviceType, true);
+				reconnectDone(robot);
+				if (robot != null)
+					onRobotReady(device, robot);
+			}
+		};
+		thread.start();
+	}
+
 	/* Connect to a robot */
 	private boolean connect(final BluetoothDevice device) {
 		Log.i(TAG, "connecting to " + device.getName() + ":" + device.getAddress());
 		Thread thread = new Thread() {
 			@Override
 			public void run() {
-				Mobbob robot = (Mobbob) Mobbob.getRobot();
-				if (robot != null)
-					robot.disconnect();
-				int waittimems = 0;
-				// BLE device
-				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
-						&& device.getType() == BluetoothDevice.DEVICE_TYPE_LE) {
-					robot = new Bluno(mActivity, mHandler, device);
-				}
-				// Bluetooth device
-				else {
-					robot = new Bluetooth(mActivity, mHandler, device);
-				}
-				robot.setConnectionListener(mListener);
-				while (robot.getConnectionState() != IConnection.connectionStateEnum.isConnected) {
-					if (waittimems > 5000) {
-						Log.e(TAG, "Failed connectting to " + device.getName() + ":" + device.getAddress());
-						// dismiss dialog
-						mDialog.cancel();
-						mDialog.dismiss();
-						return;
-					}
-					try {
-						sleep(100);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-					waittimems += 100;
-				}
-				Log.i(TAG, "Connected to " + device.getName() + ":" + device.getAddress());
-				// save last connected robot in preferences
-				SharedPreferences.Editor editor = mPreferences.edit();
-				editor.putString("device_addr", device.getAddress());
-				editor.putString("device_name", device.getName());
-				editor.commit();
-				Log.i(TAG, "saved " + device + " as autoconnect device");
+				int type = BluetoothDevice.DEVICE_TYPE_CLASSIC;
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+					type = device.getType();
+				Mobbob robot = openRobot(device, type, false);
 				// dismiss dialog
 				mDialog.cancel();
 				mDialog.dismiss();
-				robot.doFunction(null, Mobbob.commands.BOUNCE.ordinal(), 1);
-				while(robot.isBusy())
-					SystemClock.sleep(100);
+				if (robot != null)
+					onRobotReady(device, robot);
 			}
 		};
 		stop();
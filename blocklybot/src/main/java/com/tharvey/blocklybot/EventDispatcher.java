@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 Tim Harvey <harvey.tim@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tharvey.blocklybot;
+
+import android.util.Log;
+
+import org.mozilla.javascript.Context;
+
+import java.util.ArrayDeque;
+
+/**
+ * Dispatch script events to a small fixed set of worker threads
+ *
+ * Events are held in a bounded queue and an event already waiting in the queue absorbs any
+ * repeats of itself, so bursts of touch or voice events do not grow thread count or memory.
+ * Each worker enters a Rhino Context once and reuses it for every event it handles.
+ */
+public class EventDispatcher {
+	private final static String TAG = EventDispatcher.class.getSimpleName();
+
+	/* what to do with a new event when the queue is full */
+	public enum overflowPolicy {
+		DROP_OLDEST,
+		DROP_NEWEST,
+		BLOCK,
+	};
+
+	/* Interface for handling an event on a worker thread */
+	public interface IHandler {
+		void onDispatch(Context context, String event);
+	}
+
+	private final ArrayDeque<String> mQueue;
+	private final int mCapacity;
+	private final overflowPolicy mPolicy;
+	private final IHandler mHandler;
+	private final Thread[] mWorkers;
+	private boolean mRunning;
+	private int mDropped;
+
+	public EventDispatcher(int workers, int capacity, overflowPolicy policy, IHandler handler) {
+		mQueue = new ArrayDeque<String>(capacity);
+		mCapacity = capacity;
+		mPolicy = policy;
+		mHandler = handler;
+		mWorkers = new Thread[workers];
+		mRunning = false;
+		mDropped = 0;
+	}
+
+	private class Worker extends Thread {
+		Worker(int id) {
+			super("EventDispatcher-" + id);
+		}
+
+		@Override
+		public void run() {
+			Context context = Context.enter();
+			context.setOptimizationLevel(JSParser.OPTIMIZATION_LEVEL);
+			try {
+				while (true) {
+					String event;
+					synchronized (EventDispatcher.this) {
+						while (mRunning && mQueue.isEmpty())
+							EventDispatcher.this.wait();
+						if (!mRunning)
+							break;
+						event = mQueue.poll();
+						// wake any poster blocked on a full queue
+						EventDispatcher.this.notifyAll();
+					}
+					mHandler.onDispatch(context, event);
+				}
+			} catch (InterruptedException e) {
+				Log.i(TAG, getName() + " interrupted");
+			} finally {
+				Context.exit();
+			}
+		}
+	}
+
+	public synchronized void start() {
+		if (mRunning)
+			return;
+		mRunning = true;
+		mQueue.clear();
+		for (int i = 0; i < mWorkers.length; i++) {
+			mWorkers[i] = new Worker(i);
+			mWorkers[i].start();
+		}
+	}
+
+	/* stop workers once their current event is handled and discard anything queued */
+	public synchronized void stop() {
+		if (!mRunning)
+			return;
+		Log.i(TAG, "stop: " + mQueue.size() + " queued " + mDropped + " dropped");
+		mRunning = false;
+		mQueue.clear();
+		notifyAll();
+	}
+
+	/* queue an event - returns false if it was dropped
+	 *  - an identical event already queued is coalesced with this one
+	 *  - BLOCK waits for room so must not be used by posters on the UI thread
+	 */
+	public synchronized boolean post(String event) {
+		if (!mRunning)
+			return false;
+		if (mQueue.contains(event)) {
+			Log.d(TAG, "coalesced " + event);
+			return true;
+		}
+		while (mQueue.size() >= mCapacity) {
+			switch (mPolicy) {
+				case DROP_OLDEST:
+					Log.w(TAG, "queue full: dropping " + mQueue.poll());
+					mDropped++;
+					break;
+				case DROP_NEWEST:
+					Log.w(TAG, "queue full: dropping " + event);
+					mDropped++;
+					return false;
+				case BLOCK:
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return false;
+					}
+					if (!mRunning)
+						return false;
+					break;
+			}
+		}
+		mQueue.add(event);
+		notifyAll();
+		return true;
+	}
+
+	public synchronized int getDropped() {
+		return mDropped;
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Tim Harvey <harvey.tim@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tharvey.blocklybot;
+
+import android.util.Log;
+
+/**
+ * Split a serial byte stream into frames
+ *
+ * Bytes are accumulated in a fixed ring and every complete frame is handed to the
+ * listener as it is found, regardless of how the stream was split into reads:
+ *  - binary frames: sync byte followed by a fixed number of bytes
+ *  - '<...>' frames
+ *  - CRLF (or LF) terminated text lines, delivered without the terminator
+ * Frames are copied out of the ring into a reusable buffer so nothing is allocated per
+ * read or per frame. The listener must not keep a reference to the buffer.
+ */
+public class FrameScanner {
+	private final static String TAG = FrameScanner.class.getSimpleName();
+
+	private final static int RING_SIZE = 256; /* must be a power of 2 */
+	private final static int RING_MASK = RING_SIZE - 1;
+	/* longest '<...>' frame before it is treated as noise */
+	private final static int MAX_BRACKET_FRAME = 32;
+
+	/* Interface for receiving frames */
+	public interface IFrameListener {
+		void onFrame(byte[] frame, int offset, int length);
+	}
+
+	private final byte mSync;
+	private final int mSyncLength;
+	private final IFrameListener mListener;
+	private final byte[] mRing = new byte[RING_SIZE];
+	private final byte[] mFrame = new byte[RING_SIZE];
+	private int mHead; /* index of the first unconsumed byte */
+	private int mCount; /* number of unconsumed bytes */
+	private int mDropped;
+
+	public FrameScanner(byte sync, int syncLength, IFrameListener listener) {
+		mSync = sync;
+		mSyncLength = syncLength;
+		mListener = listener;
+	}
+
+	private byte at(int i) {
+		return mRing[(mHead + i) & RING_MASK];
+	}
+
+	private void consume(int n) {
+		mHead = (mHead + n) & RING_MASK;
+		mCount -= n;
+	}
+
+	/* copy length bytes to the frame buffer, deliver them and consume skip bytes */
+	private void emit(int length, int skip) {
+		for (int i = 0; i < length; i++)
+			mFrame[i] = at(i);
+		consume(skip);
+		if (length > 0)
+			mListener.onFrame(mFrame, 0, length);
+	}
+
+	/* index of b within the first limit unconsumed bytes or -1 */
+	private int find(byte b, int limit) {
+		limit = Math.min(limit, mCount);
+		for (int i = 0; i < limit; i++) {
+			if (at(i) == b)
+				return i;
+		}
+		return -1;
+	}
+
+	public synchronized void feed(byte[] data, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (mCount == RING_SIZE) {
+				/* no frame found in a full ring - deliver it as text to make room */
+				emit(RING_SIZE, RING_SIZE);
+			}
+			mRing[(mHead + mCount) & RING_MASK] = data[i];
+			mCount++;
+		}
+		scan();
+	}
+
+	private void scan() {
+		while (mCount > 0) {
+			byte b = at(0);
+			if (b == mSync) {
+				if (mCount < mSyncLength)
+					return;
+				emit(mSyncLength, mSyncLength);
+			} else if (b == '\r' || b == '\n') {
+				consume(1);
+			} else if (b == '<') {
+				int end = find((byte) '>', MAX_BRACKET_FRAME);
+				if (end < 0) {
+					if (mCount < MAX_BRACKET_FRAME)
+						return;
+					Log.w(TAG, "unterminated frame");
+					mDropped++;
+					consume(1);
+					continue;
+				}
+				emit(end + 1, end + 1);
+			} else {
+				int end = find((byte) '\n', mCount);
+				if (end < 0)
+					return;
+				int length = end;
+				if (length > 0 && at(length - 1) == '\r')
+					length--;
+				emit(length, end + 1);
+			}
+		}
+	}
+
+	/* discard any partial frame */
+	public synchronized void reset() {
+		mHead = 0;
+		mCount = 0;
+	}
+
+	public synchronized int getDropped() {
+		return mDropped;
+	}
+}
@@ -24,6 +24,9 @@ import android.bluetooth.BluetoothDevice;
 public interface IDiscover {
 	void onDiscover(BluetoothDevice device, Boolean compatible);
 
+	/* a device already known to be compatible was found */
+	void onFound(BluetoothDevice device);
+
 	void onQuery(BluetoothDevice device);
 
 	void onDiscoveryComplete();
@@ -21,4 +21,7 @@ public interface IFunction {
 	boolean isBusy();
 
 	boolean doFunction(String param1, int param2, int param3);
+
+	/* block until the function started by doFunction completes (timeoutMs <= 0 waits forever) */
+	boolean waitComplete(long timeoutMs);
 }
@@ -28,20 +28,20 @@ import android.widget.Toast;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.debug.DebugFrame;
 import org.mozilla.javascript.debug.DebuggableScript;
 import org.mozilla.javascript.debug.Debugger;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.StringReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 /**
  * Class for parsing and executing Javascript code
@@ -49,6 +49,24 @@ import java.util.regex.Pattern;
 public class JSParser {
 	private final static String TAG = JSParser.class.getSimpleName();
 
+	/* Rhino bytecode generation (optimization level >= 0) emits JVM classes which can not be
+	 * loaded by the Android runtime, so scripts are always compiled for the interpreter.
+	 */
+	final static int OPTIMIZATION_LEVEL = -1;
+	/* event handler threads and the number of distinct events that may wait for them */
+	private final static int EVENT_WORKERS = 2;
+	private final static int EVENT_QUEUE_SIZE = 16;
+	private final static String BLOCK_ID_PREFIX = "block_id_";
+	/* compiled scripts keyed by a hash of the preprocessed code (least recently used evicted) */
+	private final static int SCRIPT_CACHE_SIZE = 8;
+	private final static Map<String, Script> mScriptCache =
+			new LinkedHashMap<String, Script>(SCRIPT_CACHE_SIZE, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Script> eldest) {
+					return size() > SCRIPT_CACHE_SIZE;
+				}
+			};
+
 	private Activity mActivity;
 	private Listen mListen;
 	private Speak mSpeak;
@@ -57,11 +75,18 @@ public class JSParser {
 	private Display mDisplay;
 	private boolean mRunning;
 	private Mobbob mRobot;
-	private HashMap<String, List<String>> mEventMap;
+	private HashMap<String, List<Function>> mEventMap;
 	private List<String> mEventPendingList;
 	private Scriptable mScope;
 	private ObservingDebugger mDebugger;
+	private EventDispatcher mDispatcher;
+	private traceLevel mTraceLevel = traceLevel.NONE;
+	private IBlockListener mBlockListener;
 	private String[] mCodeLines;
+	private boolean mBatching = false;
+	private final int[] mBatchCmds = new int[Mobbob.MAX_BATCH];
+	private final int[] mBatchVals = new int[Mobbob.MAX_BATCH];
+	private int mBatchCount;
 
 	public JSParser(Activity activity) {
 		mActivity = activity;
@@ -76,31 +101,124 @@ public class JSParser {
 		return mRunning;
 	}
 
+	public void setTraceLevel(traceLevel level) {
+		mTraceLevel = level;
+	}
+
+	/* collect consecutive robot commands and hand them to the robot together - they still
+	 * go out as the robot's window allows, and blocks are highlighted ahead of the robot */
+	public void setBatching(boolean batching) {
+		mBatching = batching;
+	}
+
+	/* listener for the id of each block as it is executed */
+	public void setBlockListener(IBlockListener listener) {
+		mBlockListener = listener;
+	}
+
 	/* perform async function and block until its complete */
 	private void doFunction(final IFunction f, final String p1, final int p2, final int p3) {
+		if (f != mRobot)
+			drainRobot();
 		if (mListen != null)
 			mListen.pause();
 		f.doFunction(p1, p2, p3);
-		while (f.isBusy())
-			SystemClock.sleep(10);
+		f.waitComplete(0);
+		if (mListen != null)
+			mListen.resume();
+	}
+
+	/* queue a robot command and block only until it is sent so consecutive moves are
+	 * pipelined on the robot - when batching the command is held until the batch is full,
+	 * something other than a robot command runs or the event handler returns */
+	private void queueRobot(final String cmd, final int val) {
+		if (mBatching) {
+			synchronized (mBatchCmds) {
+				mBatchCmds[mBatchCount] = Mobbob.command(cmd);
+				mBatchVals[mBatchCount] = val;
+				if (++mBatchCount < Mobbob.MAX_BATCH)
+					return;
+			}
+			flushRobot();
+			return;
+		}
+		if (mListen != null)
+			mListen.pause();
+		boolean ok = mRobot.doFunction(cmd, 0, val) && mRobot.waitSent(0);
+		if (mListen != null)
+			mListen.resume();
+		if (!ok)
+			onRobotFailed();
+	}
+
+	/* send any batched robot commands and block until they are sent - the batch is handed
+	 * to the robot under the lock but the wait is not, so cancel() never blocks on it */
+	private void flushRobot() {
+		boolean ok;
+		synchronized (mBatchCmds) {
+			if (mBatchCount == 0)
+				return;
+			ok = mRobot.doBatch(mBatchCmds, mBatchVals, mBatchCount);
+			mBatchCount = 0;
+		}
+		if (mListen != null)
+			mListen.pause();
+		ok = ok && mRobot.waitSent(0);
 		if (mListen != null)
 			mListen.resume();
+		if (!ok)
+			onRobotFailed();
 	}
 
+	/* block until all queued robot commands have completed */
+	private void drainRobot() {
+		flushRobot();
+		if (mRobot != null && mRobot.isBusy()) {
+			if (mListen != null)
+				mListen.pause();
+			boolean ok = mRobot.waitComplete(0);
+			if (mListen != null)
+				mListen.resume();
+			if (!ok)
+				onRobotFailed();
+		}
+	}
+
+	/* robot commands were lost with the link - stop the script rather than carry on without them */
+	private void onRobotFailed() {
+		if (!mRunning || mDebugger == null)
+			return;
+		Log.e(TAG, "robot link lost - stopping script");
+		mDisplay.showMessage("Robot disconnected", Toast.LENGTH_LONG);
+		mDebugger.stop();
+	}
+
+	/* Debugger trace level:
+	 *  NONE  - only check for a stop request (no logging or allocation per line)
+	 *  LINE  - log each line executed
+	 *  BLOCK - also log function enter/exit
+	 */
+	public enum traceLevel {
+		NONE,
+		LINE,
+		BLOCK,
+	};
+
 	/* Javascript debugger - currently this is used to check for a stop execution request
 	 *     every line of code for script termination, however it could
 	 *     be used in future for feedback of blockId
 	 */
 	class ObservingDebugger implements Debugger
 	{
-		boolean mStop = false;
+		volatile boolean mStop = false;
+		private final traceLevel mTrace;
 
 		private DebugFrame debugFrame = null;
 
 		/* stack frame class */
 		class ObservingDebugFrame implements DebugFrame
 		{
-			boolean mStop = false;
+			volatile boolean mStop = false;
 
 			public void stop() {
 				this.mStop = true;
@@ -114,7 +232,8 @@ public class JSParser {
 			public void onEnter(Context cx, Scriptable activation,
 			                    Scriptable thisObj, Object[] args)
 			{
-				Log.i(TAG, "Debugger:enter");
+				if (mTrace == traceLevel.BLOCK)
+					Log.i(TAG, "Debugger:enter");
 			}
 
 			public void onLineChange(Context cx, int n)
@@ -122,7 +241,8 @@ public class JSParser {
 				if(mStop){
 					throw new RuntimeException("Script Execution terminaed");
 				}
-				Log.d(TAG, String.format("Debugger: % 3d: %s", n, mCodeLines[n-1]));
+				if (mTrace != traceLevel.NONE)
+					Log.d(TAG, String.format("Debugger: % 3d: %s", n, mCodeLines[n-1]));
 			}
 
 			public void onExceptionThrown(Context cx, Throwable ex)
@@ -133,7 +253,8 @@ public class JSParser {
 			public void onExit(Context cx, boolean byThrow,
 			                   Object resultOrException)
 			{
-				Log.i(TAG, "Debugger:exit");
+				if (mTrace == traceLevel.BLOCK)
+					Log.i(TAG, "Debugger:exit");
 			}
 
 			@Override
@@ -142,6 +263,11 @@ public class JSParser {
 			}
 		}
 
+		ObservingDebugger(traceLevel trace)
+		{
+			mTrace = trace;
+		}
+
 		public void stop() {
 			this.mStop = true;
 			Log.i(TAG, "Debugger:stop");
@@ -163,96 +289,70 @@ public class JSParser {
 		}
 	}
 
+	/* hash used as the compiled script cache key */
+	private static String scriptKey(String code) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			StringBuilder key = new StringBuilder();
+			for (byte b : digest.digest(code.getBytes()))
+				key.append(String.format("%02x", b));
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(code.hashCode()) + ":" + code.length();
+		}
+	}
+
+	/* return the compiled script for code, compiling it only if not already cached
+	 *  - compiled scripts are not bound to a scope so they can be re-executed on later runs
+	 *  - context must already be configured for debugging so the debugger sees every line
+	 */
+	private static Script compileScript(Context context, String code) {
+		String key = scriptKey(code);
+		Script script;
+
+		synchronized (mScriptCache) {
+			script = mScriptCache.get(key);
+		}
+		if (script != null) {
+			Log.d(TAG, "Using cached script " + key);
+			return script;
+		}
+		Log.d(TAG, "Compiling script " + key);
+		script = context.compileString(code, "code", 1, null);
+		synchronized (mScriptCache) {
+			mScriptCache.put(key, script);
+		}
+		return script;
+	}
+
 	public final int parseCode(final Mobbob mobbob, String generatedCode, String[] vars) {
 		mRobot = mobbob;
+		mBatchCount = 0;
 		mListen = null;
-		mEventMap = new HashMap<String, List<String>>();
+		mEventMap = new HashMap<String, List<Function>>();
 		mEventPendingList = new ArrayList<String>();
-		final List<String> phrases = new ArrayList<String>();
-		int i;
 
 		mDisplay.showFace("default");
 		if (mRobot == null)
 			mDisplay.showMessage("No robot connected", Toast.LENGTH_LONG);
 
-        /* Preparse code:
-         *  - remove any root blocks that are not start blocks (TODO: get this done by blockly)
-         *  - capture all Listen("<phrase>",*) calls to add phrase to keyword search list
-         *  - capture all Wait("<event>",*) calls to add event to function mapping
-         *  - add a footer: call start()
-         */
-		BufferedReader bufReader = new BufferedReader(new StringReader(generatedCode));
-		String line;
-		String newCode = "";
-		// declare vars
-		for (i = 0; i < vars.length; i++)
-			newCode += "var " + vars[i] + " = 0;\n";
-		newCode += "\n";
-		try {
-			while ((line = bufReader.readLine()) != null) {
-				boolean skip = false;
-
-				if (line.startsWith("BlocklyBot.Wait")) {
-					Matcher m = Pattern.compile("BlocklyBot.Wait\\(\"([^\"]*)\",.*").matcher(line);
-					if (m.find()) {
-						String map = m.group(1);
-						Log.d(TAG, "wait:" + map);
-						if (map.startsWith("listen:"))
-							phrases.add(map.substring(7));
-					}
-				}
-				else if (line.contains("BlocklyBot.EventTest")) {
-					Matcher m = Pattern.compile(".*BlocklyBot.EventTest\\(\"([^\"]*)\".*").matcher(line);
-					if (m.find()) {
-						String map = m.group(1);
-						Log.d(TAG, "eventtest:" + map);
-						if (map.startsWith("listen:"))
-							phrases.add(map.substring(7));
-					}
-				}
-				else if (line.startsWith("function ")) {
-					Matcher m = Pattern.compile("function ([^\\)]*)\\(\\).*").matcher(line);
-					if (m.find()) {
-						String name = m.group(1);
-						Log.d(TAG, "function:" + name);
-					}
-				}
-				else if (line.startsWith("BlocklyBot")) {
-					Log.d(TAG, "Skipping root block outside of start: " + line);
-					skip = true;
-				}
-				if (!skip)
-					newCode += line + '\n';
-			}
-		} catch (IOException e) {
-		}
-
-		mCodeLines = newCode.split("\\n");
-		for (i = 0; i < mCodeLines.length; i++)
-			Log.d(TAG, String.format("% 3d: %s", i+1, mCodeLines[i]));
-		final String code = newCode;
+		final PreparsedCode parsed = PreparsedCode.parse(generatedCode, vars);
+		mCodeLines = parsed.lines;
+		final String code = parsed.code;
 
-		// create and register eventListener for various event generators
-		IEventListener eventListener = new IEventListener() {
-			@Override
-			public boolean onEvent(String type, String param) {
-				final String map = type + ":" + param;
-				Log.i(TAG, "onEvent: " + map);
-				if (!mEventPendingList.contains(map))
-					mEventPendingList.add(map);
-				if (!mEventMap.containsKey(map))
-					return false;
-				final List<String> eventList = mEventMap.get(map);
-				// these come in on UI thread which we must not block on, so use a thread
-				Thread thread = new Thread() {
+		// event handlers run on the dispatcher workers, each with its own long lived Rhino Context
+		if (mDispatcher != null)
+			mDispatcher.stop();
+		final EventDispatcher dispatcher = new EventDispatcher(EVENT_WORKERS, EVENT_QUEUE_SIZE, EventDispatcher.overflowPolicy.DROP_OLDEST,
+				new EventDispatcher.IHandler() {
 					@Override
-					public void run() {
-						Context context = Context.enter();
-						context.setOptimizationLevel(-1);
-						for (String func : eventList) {
+					public void onDispatch(Context context, String map) {
+						List<Function> eventList = mEventMap.get(map);
+						if (eventList == null)
+							return;
+						for (Function func : eventList) {
 							try {
-								Function start = context.compileFunction(mScope, func, map, 1, null);
-								start.call(context, mScope, context.newObject(mScope), new Object[0]);
+								func.call(context, mScope, context.newObject(mScope), new Object[0]);
 							} catch (RhinoException e) {
 								Log.e(TAG, "Exception in engine");
 								Log.e(TAG, e.getMessage());
@@ -263,10 +363,25 @@ public class JSParser {
 								break;
 							}
 						}
-						Context.exit();
+						/* nothing else may come along to flush what the handler batched */
+						flushRobot();
 					}
-				};
-				thread.start();
+				});
+		mDispatcher = dispatcher;
+		dispatcher.start();
+
+		// create and register eventListener for various event generators
+		IEventListener eventListener = new IEventListener() {
+			@Override
+			public boolean onEvent(String type, String param) {
+				final String map = type + ":" + param;
+				Log.i(TAG, "onEvent: " + map);
+				if (!mEventPendingList.contains(map))
+					mEventPendingList.add(map);
+				if (!mEventMap.containsKey(map))
+					return false;
+				// these come in on UI thread which we must not block on, so hand off to the dispatcher
+				dispatcher.post(map);
 				return true;
 			}
 		};
@@ -274,8 +389,8 @@ public class JSParser {
 
 		// Start voice recognitiong engine
 		if (ContextCompat.checkSelfPermission(mActivity, Manifest.permission.RECORD_AUDIO) == PackageManager.PERMISSION_GRANTED
-		    && phrases.size() > 0)
-			mListen = new Listen(mActivity, phrases, eventListener);
+		    && parsed.phrases.size() > 0)
+			mListen = new Listen(mActivity, parsed.phrases, eventListener);
 
 		Thread thread = new Thread() {
 			@Override
@@ -291,17 +406,18 @@ public class JSParser {
 				// setup Rhino
 				Log.i(TAG, "Configuring Rhino");
 				Context context = Context.enter();
-				mDebugger = new ObservingDebugger();
+				mDebugger = new ObservingDebugger(mTraceLevel);
 				context.setDebugger(mDebugger, new Integer(0));
 				context.setGeneratingDebug(true);
-				context.setOptimizationLevel(-1);
+				context.setOptimizationLevel(OPTIMIZATION_LEVEL);
 				mScope = context.initStandardObjects();
 				ScriptableObject.putProperty(mScope, "BlocklyBot", Context.javaToJS(JSParser.this, mScope));
 
 				mRunning = true;
 				try {
+					Script script = compileScript(context, code);
 					Log.d(TAG, "Evaluating code");
-					context.evaluateString(mScope, code, "code", 1, null);
+					script.exec(context, mScope);
 					Log.d(TAG, "Calling start()");
 					Function jsFunction = (Function) mScope.get("start", mScope);
 					Object jsResult = jsFunction.call(context, mScope, mScope, new Object[0]);
@@ -317,6 +433,9 @@ public class JSParser {
 					Context.exit();
 				}
 				Log.i(TAG, "execution done");
+				drainRobot();
+				if (mBlockListener != null)
+					mBlockListener.onBlock(null);
 
 				// wait display to complete (ie script terminated or complete)
 				if (mDisplay.isVisible()) {
@@ -332,6 +451,8 @@ public class JSParser {
 					doFunction(mRobot, null, Mobbob.commands.STOP.ordinal(), 0);
 				if (mListen != null)
 					mListen.close();
+				/* this run's dispatcher - mDispatcher may already belong to the next run */
+				dispatcher.stop();
 			}
 		};
 		thread.start();
@@ -350,6 +471,21 @@ public class JSParser {
 		Log.i(TAG, "cancel()");
 		mDisplay.hideFace();
 		mDebugger.stop();
+		if (mRobot != null)
+			mRobot.clearQueue();
+		synchronized (mBatchCmds) {
+			mBatchCount = 0;
+		}
+	}
+
+	/* publish the block about to execute - generated code passes ids as 'block_id_<id>' */
+	private void onBlock(String blockId) {
+		if (blockId.startsWith(BLOCK_ID_PREFIX))
+			blockId = blockId.substring(BLOCK_ID_PREFIX.length());
+		if (mTraceLevel == traceLevel.BLOCK)
+			Log.d(TAG, "block:" + blockId);
+		if (mBlockListener != null)
+			mBlockListener.onBlock(blockId);
 	}
 
 	/*
@@ -363,13 +499,18 @@ public class JSParser {
 		if (val < 1)
 			val = 1;
 		if (mRobot != null)
-			doFunction(mRobot, str, 0, val);
+			queueRobot(str, val);
 		else {
 			mDisplay.showMessage(str, Toast.LENGTH_SHORT);
 			SystemClock.sleep(1000);
 		}
 	}
 
+	public void Robot(String str, int val, String blockId) {
+		onBlock(blockId);
+		Robot(str, val);
+	}
+
 	public void Speak(String text) {
 		Log.i(TAG, "speak(" + text + ")");
 		mDisplay.setSpeaking(true);
@@ -377,32 +518,61 @@ public class JSParser {
 		mDisplay.setSpeaking(false);
 	}
 
+	public void Speak(String text, String blockId) {
+		onBlock(blockId);
+		Speak(text);
+	}
+
 	public void Audio(String text) {
 		Log.i(TAG, "audio(" + text + ")");
 		doFunction(mAudio, text, 0, 0);
 	}
 
+	public void Audio(String text, String blockId) {
+		onBlock(blockId);
+		Audio(text);
+	}
+
 	public void Tone(int freq, int secs) {
 		Log.i(TAG, "tone: freq=" + freq + "secs=" + secs);
 		doFunction(mTone, null, freq, secs * 1000);
 	}
 
+	public void Tone(int freq, int secs, String blockId) {
+		onBlock(blockId);
+		Tone(freq, secs);
+	}
+
 	public void Note(String note, int timems) {
 		int octave = 3; /* 3rd octave */
 		Log.i(TAG, "note(" + note + ")");
 		doFunction(mTone, null, (int) Note.valueOf(note + octave), timems);
 	}
 
+	public void Note(String note, int timems, String blockId) {
+		onBlock(blockId);
+		Note(note, timems);
+	}
+
 	public void Sleep(int times) {
 		Log.i(TAG, "Sleep(" + times + ")");
+		drainRobot();
 		SystemClock.sleep(1000 * times);
 	}
 
-	public void Wait(String event, String func) {
+	public void Sleep(int times, String blockId) {
+		onBlock(blockId);
+		Sleep(times);
+	}
+
+	/* register an event handler - the handler is the compiled function object from the script
+	 * so it is invoked directly when the event fires without being recompiled
+	 */
+	public void Wait(String event, Function func) {
 		Log.i(TAG, "Wait(" + event + ")");
-		List<String> list = mEventMap.get(event);
+		List<Function> list = mEventMap.get(event);
 		if (list == null) {
-			list = new ArrayList<String>();
+			list = new ArrayList<Function>();
 			mEventMap.put(event, list);
 		}
 		list.add(func);
@@ -410,6 +580,7 @@ public class JSParser {
 
 	public boolean EventTest(String map) {
 		Log.i(TAG, "EventTest(" + map + ")");
+		flushRobot();
 		if (mEventPendingList.contains(map)) {
 			Log.i(TAG, "Event asserted");
 			mEventPendingList.remove(map); // read-to-clear
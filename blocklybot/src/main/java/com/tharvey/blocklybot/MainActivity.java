@@ -65,6 +65,9 @@ public class MainActivity extends AppCompatActivity {
 	}
 
 	protected void launchPreferredActivity() {
+		/* start reattaching to the last robot now - the activity joins it when it starts */
+		if (RobotRegistry.getActiveMobbob() == null)
+			DiscoverySelector.reconnect(this, null);
 		String controller = mSharedPref.getString("pref_defaultView", "blockly");
 		Log.i(TAG, "Controller:" + controller);
 		if (controller.equals("panel")) {
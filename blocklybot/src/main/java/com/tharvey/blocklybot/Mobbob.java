@@ -19,15 +19,96 @@ package com.tharvey.blocklybot;
 import android.os.Handler;
 import android.util.Log;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Mobbob robot protocol
+ *
+ * Commands are pipelined: up to mWindow commands are in flight on the robot at once and
+ * the rest wait in a bounded send queue. The robot acknowledges each command in the order
+ * it was sent so acknowledgements are matched against the in-flight FIFO.
+ *
+ * Commands are sent as ASCII '<CC,val>' until the robot accepts the compact binary
+ * framing offered when the connection comes up:
+ *  command: SYNC seq opcode value(varint) checksum
+ *  ack:     SYNC seq opcode checksum
+ * where the checksum is the XOR of the bytes between SYNC and the checksum.
+ *
+ * A batch is queued in one go but gets no special treatment on the link: each command
+ * takes a slot in the window and consecutive commands are only combined into one write
+ * when the window has room for them. The robot runs the steps in order and acks each one.
+ *
+ * A command whose write is dropped by the transport is failed so waitComplete() returns.
+ * A command whose ack doesn't arrive in time for its value once it reaches the head of
+ * the FIFO is given up on like one whose ack was lost - a slow robot is not a lost one,
+ * losing the link is reported by onLinkLost().
+ */
 public abstract class Mobbob extends Robot implements IFunction {
 	private final static String TAG = Mobbob.class.getSimpleName();
 
-	private String mPlaying;
-	static Mobbob mContext;
+	final static int DEFAULT_WINDOW = 2;
+	final static int SEND_QUEUE_SIZE = 16;
+	/* most commands queued by a single doBatch() */
+	final static int MAX_BATCH = 8;
+	/* a command at the head of the in-flight FIFO waits for its ack for the base time
+	 * plus the step time for each step of its value */
+	final static long ACK_TIMEOUT_MS = 5000;
+	final static long ACK_STEP_TIMEOUT_MS = 2000;
+	/* values past this are not steps (eg. a delay) so don't extend the wait further */
+	private final static int ACK_MAX_STEPS = 1000;
+
+	final static byte FRAME_SYNC = (byte) 0xA5;
+	final static int ACK_FRAME_LENGTH = 4;
+	/* longest frame is ASCII '<CC,-2147483648>' */
+	final static int MAX_FRAME_LENGTH = 16;
+	final static int PROTOCOL_VERSION = 2;
+	private final static String NEGOTIATE_CMD = "PV";
+
+	public enum framing {
+		ASCII,
+		BINARY,
+	};
+
+	private final Handler mHandler;
 	private String mLastRX;
+	private int mWindow = DEFAULT_WINDOW;
+	private framing mFraming = framing.ASCII;
+	private int mSeq = 0;
+	private final ArrayDeque<Command> mSendQueue = new ArrayDeque<Command>(SEND_QUEUE_SIZE);
+	private final ArrayDeque<Command> mInFlight = new ArrayDeque<Command>();
+	/* pending while anything is queued or in flight */
+	private final Completion mCompletion = new Completion();
+	/* pending while anything is waiting in the send queue */
+	private final Completion mSent = new Completion();
+	/* a command was failed since the pipeline was last idle */
+	private boolean mFailed;
+	/* in-flight command the ack timeout is running for */
+	private Command mTimedCommand;
+	private final FrameScanner mScanner = new FrameScanner(FRAME_SYNC, ACK_FRAME_LENGTH,
+			new FrameScanner.IFrameListener() {
+				@Override
+				public void onFrame(byte[] frame, int offset, int length) {
+					Mobbob.this.onFrame(frame, offset, length);
+				}
+			});
 
-	static Mobbob getMobob() {
-		return mContext;
+	private static class Command {
+		final int cmd;
+		final int val;
+		final int seq;
+		/* number of commands batched with this one (0 if it is part of an earlier batch) */
+		final int batch;
+
+		Command(int cmd, int val, int seq, int batch) {
+			this.cmd = cmd;
+			this.val = val;
+			this.seq = seq;
+			this.batch = batch;
+		}
 	}
 
 	// Standard Walk Commands
@@ -57,7 +138,7 @@ public abstract class Mobbob extends Robot implements IFunction {
 
 	public Mobbob(Handler handler, String name, String address) {
 		super(name, address);
-		mContext = this;
+		mHandler = handler;
 		mLastRX = "";
 	}
 
@@ -119,31 +200,326 @@ public abstract class Mobbob extends Robot implements IFunction {
 		return cmd;
 	}
 
+	/* offer binary framing when the connection comes up - the robot switches only if it
+	 * replies with the same protocol version, otherwise ASCII remains in use */
+	@Override
+	protected void setState(IConnection.connectionStateEnum state) {
+		synchronized (this) {
+			mFraming = framing.ASCII;
+		}
+		mScanner.reset();
+		super.setState(state);
+		if (state == IConnection.connectionStateEnum.isConnected)
+			serialSend("<" + NEGOTIATE_CMD + "," + PROTOCOL_VERSION + ">");
+	}
+
+	public synchronized framing getFraming() {
+		return mFraming;
+	}
+
+	/* number of commands allowed in flight on the robot at once (1 disables pipelining) */
+	public synchronized void setWindow(int window) {
+		mWindow = Math.max(1, window);
+		pump();
+	}
+
+	public synchronized int getWindow() {
+		return mWindow;
+	}
+
+	/* protocol version in use - 1 is the original ASCII protocol */
+	public synchronized int getProtocolVersion() {
+		return (mFraming == framing.BINARY) ? PROTOCOL_VERSION : 1;
+	}
+
+	private static byte checksum(byte[] data, int offset, int length) {
+		byte sum = 0;
+		for (int i = offset; i < offset + length; i++)
+			sum ^= data[i];
+		return sum;
+	}
+
+	/* encode a command frame into frame at offset - returns the frame length */
+	private int encode(Command c, byte[] frame, int offset) {
+		if (mFraming == framing.ASCII) {
+			byte[] str = ("<" + command_str[c.cmd] + "," + c.val + ">").getBytes(CHARSET);
+			System.arraycopy(str, 0, frame, offset, str.length);
+			return str.length;
+		}
+		int n = offset;
+		frame[n++] = FRAME_SYNC;
+		frame[n++] = (byte) c.seq;
+		frame[n++] = (byte) c.cmd;
+		int val = c.val;
+		while ((val & ~0x7f) != 0) {
+			frame[n++] = (byte) ((val & 0x7f) | 0x80);
+			val >>>= 7;
+		}
+		frame[n++] = (byte) val;
+		frame[n] = checksum(frame, offset + 1, n - offset - 1);
+		return n + 1 - offset;
+	}
+
+	/* send queued commands while there is room in the window - consecutive commands of a
+	 * batch are split into as few writes as fit the transport payload without splitting
+	 * a frame */
+	private void pump() {
+		while (mInFlight.size() < mWindow && !mSendQueue.isEmpty()) {
+			int payload = getPayloadSize();
+			byte[] frames = new byte[(mWindow - mInFlight.size()) * MAX_FRAME_LENGTH];
+			List<Command> write = new ArrayList<Command>();
+			int start = 0;
+			int len = 0;
+			do {
+				Command c = mSendQueue.poll();
+				mInFlight.add(c);
+				int n = encode(c, frames, len);
+				if (len > start && len + n - start > payload) {
+					send(frames, start, len, write);
+					start = len;
+				}
+				write.add(c);
+				len += n;
+			} while (mInFlight.size() < mWindow && !mSendQueue.isEmpty() && mSendQueue.peek().batch == 0);
+			send(frames, start, len, write);
+		}
+		if (mSendQueue.isEmpty())
+			mSent.done();
+		if (mInFlight.isEmpty()) {
+			if (mFailed)
+				mCompletion.fail();
+			else
+				mCompletion.done();
+		}
+		timeAck();
+	}
+
+	/* write the frames of commands - they fail if the transport drops the write */
+	private void send(byte[] frames, int start, int end, List<Command> commands) {
+		if (!serialSend(Arrays.copyOfRange(frames, start, end))) {
+			Log.w(TAG, "write dropped: failing " + commands.size() + " commands");
+			mInFlight.removeAll(commands);
+			mFailed = true;
+		}
+		commands.clear();
+	}
+
+	/* (re)start the ack timeout when the command at the head of the FIFO changes */
+	private void timeAck() {
+		Command head = mInFlight.peek();
+		if (head == mTimedCommand)
+			return;
+		mTimedCommand = head;
+		mHandler.removeCallbacks(mAckTimeout);
+		if (head != null)
+			mHandler.postDelayed(mAckTimeout, ackTimeout(head));
+	}
+
+	/* how long the robot may take to run and ack a command */
+	private static long ackTimeout(Command c) {
+		long steps = Math.min(Math.abs((long) c.val), ACK_MAX_STEPS);
+		return ACK_TIMEOUT_MS + steps * ACK_STEP_TIMEOUT_MS;
+	}
+
+	/* the robot never acked the head command - give up on the ack so the pipeline moves on */
+	private final Runnable mAckTimeout = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (Mobbob.this) {
+				Command head = mInFlight.peek();
+				if (head == null || head != mTimedCommand)
+					return;
+				Log.w(TAG, "command " + command_str[head.cmd] + " ack timed out");
+				mInFlight.poll();
+				mTimedCommand = null;
+				pump();
+			}
+		}
+	};
+
+	/* complete the in-flight command matching an ack (seq < 0 for ASCII acks which only
+	 * carry the command) - acks arrive in order so anything ahead of it lost its ack */
+	private synchronized void onAck(int cmd, int seq) {
+		Command match = null;
+		for (Command c : mInFlight) {
+			if (c.cmd == cmd && (seq < 0 || c.seq == seq)) {
+				match = c;
+				break;
+			}
+		}
+		if (match == null) {
+			Log.w(TAG, "unexpected ack " + cmd + ":" + seq);
+			return;
+		}
+		Iterator<Command> it = mInFlight.iterator();
+		while (it.hasNext()) {
+			Command done = it.next();
+			it.remove();
+			if (done == match)
+				break;
+			Log.w(TAG, "command " + command_str[done.cmd] + " ack lost");
+		}
+		Log.i(TAG, "<< " + command_str[cmd] + " complete (" + mInFlight.size() + " in flight)");
+		pump();
+	}
+
+	/* raw data from the transport - split into frames however it was read */
+	protected void onSerialData(byte[] data, int offset, int length) {
+		mScanner.feed(data, offset, length);
+	}
+
+	/* index of the 2 character ASCII command code or -1 */
+	private int commandIndex(byte c0, byte c1) {
+		for (int cmd = 0; cmd < command_str.length; cmd++) {
+			if (command_str[cmd].charAt(0) == c0 && command_str[cmd].charAt(1) == c1)
+				return cmd;
+		}
+		return -1;
+	}
+
+	/* a single frame from the robot - acks are decoded in place, anything else is text */
+	private void onFrame(byte[] frame, int offset, int length) {
+		if (frame[offset] == FRAME_SYNC) {
+			if (checksum(frame, offset + 1, 2) != frame[offset + 3])
+				Log.w(TAG, "bad checksum: " + toPrintable(frame, offset, length));
+			else if ((frame[offset + 2] & 0xff) < commands.CMD_MAX.ordinal())
+				onAck(frame[offset + 2] & 0xff, frame[offset + 1] & 0xff);
+			return;
+		}
+		if (length == 4 && frame[offset] == '<' && frame[offset + 3] == '>') {
+			int cmd = commandIndex(frame[offset + 1], frame[offset + 2]);
+			if (cmd >= 0) {
+				onAck(cmd, -1);
+				return;
+			}
+		}
+		onSerialReceived(new String(frame, offset, length, CHARSET));
+	}
+
 	protected void onSerialReceived(String str) {
 		str = str.replace("\r\n", "");
 		mLastRX = str;
 		Log.i(TAG, "<< " + str);
-		if (mPlaying != null && mLastRX.equals("<" + mPlaying + ">")) {
-			Log.i(TAG, "command " + mPlaying + " complete");
-			mPlaying = null;
+		if (str.length() < 3 || str.charAt(0) != '<' || str.charAt(str.length() - 1) != '>')
+			return;
+		String code = str.substring(1, str.length() - 1);
+		if (code.startsWith(NEGOTIATE_CMD)) {
+			synchronized (this) {
+				if (code.equals(NEGOTIATE_CMD + "," + PROTOCOL_VERSION))
+					mFraming = framing.BINARY;
+				Log.i(TAG, "framing " + mFraming);
+			}
+			return;
 		}
+		for (int cmd = 0; cmd < command_str.length; cmd++) {
+			if (command_str[cmd].equals(code)) {
+				onAck(cmd, -1);
+				return;
+			}
+		}
+		Log.w(TAG, "unexpected ack " + str);
+	}
+
+	public synchronized boolean isBusy() {
+		return !mInFlight.isEmpty() || !mSendQueue.isEmpty();
+	}
+
+	/* block until all queued and in-flight commands have completed - false if the link was
+	 * lost or a command failed */
+	public boolean waitComplete(long timeoutMs) {
+		return mCompletion.await(timeoutMs);
 	}
 
+	/* block until all queued commands have been sent to the robot - false if the link was
+	 * lost first */
+	public boolean waitSent(long timeoutMs) {
+		return mSent.await(timeoutMs);
+	}
 
-	public boolean isBusy() {
-		return (mPlaying != null);
+	/* discard commands not yet sent - those in flight still complete on the robot */
+	public synchronized void clearQueue() {
+		if (!mSendQueue.isEmpty())
+			Log.i(TAG, "discarding " + mSendQueue.size() + " queued commands");
+		mSendQueue.clear();
+		pump();
 	}
 
-	public boolean doFunction(String p1, int nCmd, int nVal) {
+	/*
+	 * The link dropped. Commands in flight may or may not have run on the robot so they
+	 * are not replayed - they fail along with everything queued behind them, and anyone
+	 * waiting is released with an error rather than waiting for acks that will never come.
+	 */
+	@Override
+	protected void onLinkLost() {
+		synchronized (this) {
+			if (!mInFlight.isEmpty() || !mSendQueue.isEmpty())
+				Log.w(TAG, "link lost: failing " + mInFlight.size() + " in flight and "
+						+ mSendQueue.size() + " queued commands");
+			mInFlight.clear();
+			mSendQueue.clear();
+			mFailed = false;
+			mTimedCommand = null;
+		}
+		mHandler.removeCallbacks(mAckTimeout);
+		mSent.fail();
+		mCompletion.fail();
+	}
+
+	/* queue a command - returns false if it is invalid, the robot is not connected or the
+	 * send queue is full */
+	public synchronized boolean doFunction(String p1, int nCmd, int nVal) {
 		if (p1 != null)
 			nCmd = command(p1);
-		if (!isBusy() && nCmd < commands.CMD_MAX.ordinal()) {
-			mPlaying = command_str[nCmd];
-			Log.i(TAG, "Mobob cmd:" + mPlaying + " val:" + nVal);
-			mLastRX = "";
-			serialSend("<" + mPlaying + "," + nVal + ">");
-			return true;
-		}
-		return false;
+		if (nCmd >= commands.CMD_MAX.ordinal())
+			return false;
+		if (getPhase() != connectPhase.READY) {
+			Log.w(TAG, "not connected: dropping " + command_str[nCmd]);
+			return false;
+		}
+		if (mSendQueue.size() >= SEND_QUEUE_SIZE) {
+			Log.w(TAG, "send queue full: dropping " + command_str[nCmd]);
+			return false;
+		}
+		Log.i(TAG, "Mobob cmd:" + command_str[nCmd] + " val:" + nVal);
+		mLastRX = "";
+		if (!isBusy())
+			mFailed = false;
+		mSeq = (mSeq + 1) & 0xff;
+		mCompletion.start();
+		mSent.start();
+		mSendQueue.add(new Command(nCmd, nVal, mSeq, 1));
+		pump();
+		return true;
+	}
+
+	/* queue up to MAX_BATCH commands at once - returns false if any command is invalid
+	 * or the send queue has no room */
+	public synchronized boolean doBatch(int[] cmds, int[] vals, int count) {
+		if (count < 1 || count > MAX_BATCH)
+			return false;
+		if (getPhase() != connectPhase.READY) {
+			Log.w(TAG, "not connected: dropping batch of " + count);
+			return false;
+		}
+		if (mSendQueue.size() + count > SEND_QUEUE_SIZE) {
+			Log.w(TAG, "send queue full: dropping batch of " + count);
+			return false;
+		}
+		for (int i = 0; i < count; i++) {
+			if (cmds[i] < 0 || cmds[i] >= commands.CMD_MAX.ordinal())
+				return false;
+		}
+		Log.i(TAG, "Mobob batch of " + count);
+		mLastRX = "";
+		if (!isBusy())
+			mFailed = false;
+		mCompletion.start();
+		mSent.start();
+		for (int i = 0; i < count; i++) {
+			mSeq = (mSeq + 1) & 0xff;
+			mSendQueue.add(new Command(cmds[i], vals[i], mSeq, i == 0 ? count : 0));
+		}
+		pump();
+		return true;
 	}
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Tim Harvey <harvey.tim@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tharvey.blocklybot;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generated code after preparsing for JSParser
+ *
+ * Holds the code to evaluate, its lines (indexed by script line number - 1 for the debugger)
+ * and the voice phrases the code refers to. Built in a single pass over the generated code.
+ */
+public class PreparsedCode {
+	private final static String TAG = PreparsedCode.class.getSimpleName();
+
+	private final static Pattern WAIT_PATTERN = Pattern.compile("^BlocklyBot\\.Wait\\(\"([^\"]*)\",");
+	private final static Pattern EVENTTEST_PATTERN = Pattern.compile("BlocklyBot\\.EventTest\\(\"([^\"]*)\"");
+	private final static Pattern FUNCTION_PATTERN = Pattern.compile("^function ([^\\)]*)\\(\\)");
+	private final static String LISTEN_PREFIX = "listen:";
+
+	/* code to evaluate */
+	public final String code;
+	/* lines of code */
+	public final String[] lines;
+	/* voice phrases used by Wait() or EventTest() */
+	public final List<String> phrases;
+
+	private PreparsedCode(String code, String[] lines, List<String> phrases) {
+		this.code = code;
+		this.lines = lines;
+		this.phrases = phrases;
+	}
+
+	/* Preparse code:
+	 *  - declare vars
+	 *  - remove any root blocks that are not start blocks (TODO: get this done by blockly)
+	 *  - capture all listen:<phrase> events to add phrase to keyword search list
+	 */
+	public static PreparsedCode parse(String generatedCode, String[] vars) {
+		StringBuilder code = new StringBuilder(generatedCode.length() + vars.length * 16 + 1);
+		List<String> lines = new ArrayList<String>();
+		List<String> phrases = new ArrayList<String>();
+		Matcher wait = WAIT_PATTERN.matcher("");
+		Matcher eventTest = EVENTTEST_PATTERN.matcher("");
+		Matcher function = FUNCTION_PATTERN.matcher("");
+
+		// declare vars
+		for (String var : vars) {
+			String line = "var " + var + " = 0;";
+			code.append(line).append('\n');
+			lines.add(line);
+		}
+		code.append('\n');
+		lines.add("");
+
+		int start = 0;
+		int len = generatedCode.length();
+		while (start < len) {
+			int end = generatedCode.indexOf('\n', start);
+			if (end < 0)
+				end = len;
+			int next = end + 1;
+			if (end > start && generatedCode.charAt(end - 1) == '\r')
+				end--;
+			String line = generatedCode.substring(start, end);
+			start = next;
+
+			if (line.startsWith("BlocklyBot.Wait")) {
+				if (wait.reset(line).find()) {
+					String map = wait.group(1);
+					Log.d(TAG, "wait:" + map);
+					if (map.startsWith(LISTEN_PREFIX))
+						phrases.add(map.substring(LISTEN_PREFIX.length()));
+				}
+			} else if (line.contains("BlocklyBot.EventTest")) {
+				if (eventTest.reset(line).find()) {
+					String map = eventTest.group(1);
+					Log.d(TAG, "eventtest:" + map);
+					if (map.startsWith(LISTEN_PREFIX))
+						phrases.add(map.substring(LISTEN_PREFIX.length()));
+				}
+			} else if (line.startsWith("function ")) {
+				if (function.reset(line).find())
+					Log.d(TAG, "function:" + function.group(1));
+			} else if (line.startsWith("BlocklyBot")) {
+				Log.d(TAG, "Skipping root block outside of start: " + line);
+				continue;
+			}
+			code.append(line).append('\n');
+			lines.add(line);
+		}
+
+		// drop trailing blank lines (nothing for the debugger to report there)
+		int n = lines.size();
+		while (n > 0 && lines.get(n - 1).length() == 0)
+			n--;
+		if (BuildConfig.DEBUG) {
+			for (int i = 0; i < n; i++)
+				Log.d(TAG, (i + 1) + ": " + lines.get(i));
+		}
+
+		return new PreparsedCode(code.toString(), lines.subList(0, n).toArray(new String[n]), phrases);
+	}
+}
@@ -16,36 +16,81 @@
 
 package com.tharvey.blocklybot;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import java.nio.charset.Charset;
+
 public abstract class Robot {
 	private final static String TAG = Robot.class.getSimpleName();
 
-	static Robot mContext;
-
-	static Robot getRobot() {
-		return mContext;
+	/* phases of bringing up a connection, in order - transports may skip phases */
+	public enum connectPhase {
+		IDLE,
+		LINK_CONNECT, /* GATT connect or RFCOMM socket connect */
+		SERVICE_DISCOVERY,
+		MODEL_READ,
+		HANDSHAKE,
+		READY,
+		FAILED,
 	}
 
+	private final static long LINK_TIMEOUT_MS = 8000;
+	private final static long SERVICE_DISCOVERY_TIMEOUT_MS = 5000;
+	private final static long MODEL_READ_TIMEOUT_MS = 2000;
+	private final static long HANDSHAKE_TIMEOUT_MS = 2000;
+	/* a failed attempt is retried this many times, the delay doubling each time */
+	private final static int MAX_RETRIES = 2;
+	private final static long RETRY_BACKOFF_MS = 500;
+
 	private String mDeviceName;
 	private String mDeviceAddress;
 	private IConnection.connectionStateEnum mConnectionState = IConnection.connectionStateEnum.isNull;
 	private IConnection mConnectionListener = null;
 
-	public abstract void serialSend(String theString);
+	private final Object mPhaseLock = new Object();
+	private connectPhase mPhase = connectPhase.IDLE;
+	private int mAttempt;
+	private int mMaxRetries = MAX_RETRIES;
+	private long mLinkTimeout = LINK_TIMEOUT_MS;
+	private PhaseTimeout mPhaseTimeout;
+	/* pending from startConnect() until the robot is ready or connecting is given up */
+	private final Completion mConnected = new Completion();
+	private final Handler mTimeoutHandler = new Handler(Looper.getMainLooper());
+
+	/* robot serial data is 8-bit clean */
+	final static Charset CHARSET = Charset.forName("ISO-8859-1");
+
+	/* queue data for the robot - false if it was dropped */
+	public abstract boolean serialSend(byte[] data);
+
+	public boolean serialSend(String theString) {
+		return serialSend(theString.getBytes(CHARSET));
+	}
 
 	public abstract void disconnect();
 
+	/* start (or restart) connecting the transport - returns non-zero if it can't be started */
 	public abstract int connect();
 
-	public Robot() {
-		mContext = this;
-	}
+	/* tear down a partial connection after a failed attempt */
+	protected abstract void abortConnect();
 
 	public Robot(String name, String address) {
-		mContext = this;
 		mDeviceAddress = address;
 		mDeviceName = name;
+		RobotRegistry.register(this);
+	}
+
+	/* largest write the transport sends as a single packet - stream transports have no limit */
+	public int getPayloadSize() {
+		return Integer.MAX_VALUE;
+	}
+
+	/* negotiated link MTU or 0 if the transport has none */
+	public int getMtu() {
+		return 0;
 	}
 
 	public IConnection.connectionStateEnum getConnectionState() {
@@ -64,6 +109,192 @@ public abstract class Robot {
 			mConnectionListener.connectionStateChanged(state);
 	}
 
+	/* Fails the phase it was started for if the robot is still in it */
+	private class PhaseTimeout implements Runnable {
+		final connectPhase mFor;
+
+		PhaseTimeout(connectPhase phase) {
+			mFor = phase;
+		}
+
+		@Override
+		public void run() {
+			fail("timeout in " + mFor, true, mFor);
+		}
+	}
+
+	private final Runnable mRetry = new Runnable() {
+		@Override
+		public void run() {
+			attemptConnect();
+		}
+	};
+
+	/* time allowed for each phase - 0 for no limit */
+	protected long getPhaseTimeout(connectPhase phase) {
+		switch (phase) {
+			case LINK_CONNECT:
+				return mLinkTimeout;
+			case SERVICE_DISCOVERY:
+				return SERVICE_DISCOVERY_TIMEOUT_MS;
+			case MODEL_READ:
+				return MODEL_READ_TIMEOUT_MS;
+			case HANDSHAKE:
+				return HANDSHAKE_TIMEOUT_MS;
+			default:
+				return 0;
+		}
+	}
+
+	public connectPhase getPhase() {
+		synchronized (mPhaseLock) {
+			return mPhase;
+		}
+	}
+
+	/* connecting may start from idle or a failure, otherwise phases only move forward */
+	private static boolean canMove(connectPhase from, connectPhase to) {
+		switch (to) {
+			case IDLE:
+				return true;
+			case FAILED:
+				return from != connectPhase.IDLE && from != connectPhase.FAILED;
+			case LINK_CONNECT:
+				return from == connectPhase.IDLE || from == connectPhase.FAILED;
+			default:
+				return from != connectPhase.IDLE && from.ordinal() < to.ordinal();
+		}
+	}
+
+	/* change phase and arm its timeout - returns the previous phase or null if not allowed */
+	private connectPhase move(connectPhase to) {
+		synchronized (mPhaseLock) {
+			connectPhase from = mPhase;
+			if (!canMove(from, to)) {
+				Log.w(TAG, this + ": ignoring " + from + " -> " + to);
+				return null;
+			}
+			mPhase = to;
+			if (mPhaseTimeout != null)
+				mTimeoutHandler.removeCallbacks(mPhaseTimeout);
+			mPhaseTimeout = null;
+			long timeout = getPhaseTimeout(to);
+			if (timeout > 0) {
+				mPhaseTimeout = new PhaseTimeout(to);
+				mTimeoutHandler.postDelayed(mPhaseTimeout, timeout);
+			}
+			Log.i(TAG, this + ": " + from + " -> " + to);
+			return from;
+		}
+	}
+
+	/* called by the transport as each phase is reached - returns false if out of order */
+	protected boolean setPhase(connectPhase phase) {
+		if (phase == connectPhase.FAILED) {
+			fail("failed", false);
+			return true;
+		}
+		if (move(phase) == null)
+			return false;
+		if (phase == connectPhase.READY) {
+			setState(IConnection.connectionStateEnum.isConnected);
+			mConnected.done();
+		} else if (phase == connectPhase.IDLE) {
+			mTimeoutHandler.removeCallbacks(mRetry);
+			mConnected.done();
+		}
+		return true;
+	}
+
+	/* the current attempt failed - retry after a backoff or give up */
+	protected void fail(String reason, boolean retry) {
+		fail(reason, retry, null);
+	}
+
+	/* as fail() but only if still in the expected phase (null for any) */
+	private void fail(String reason, boolean retry, connectPhase expected) {
+		long delay = 0;
+		boolean again;
+		synchronized (mPhaseLock) {
+			/* only an attempt in progress can fail, and only once */
+			if (mPhase == connectPhase.IDLE || mPhase == connectPhase.FAILED || mPhase == connectPhase.READY)
+				return;
+			if (expected != null && mPhase != expected)
+				return;
+			again = retry && mAttempt < mMaxRetries;
+			if (again)
+				delay = RETRY_BACKOFF_MS << mAttempt++;
+			move(connectPhase.FAILED);
+		}
+		Log.w(TAG, this + ": connect failed: " + reason + (again ? " - retrying in " + delay + "ms" : ""));
+		abortConnect();
+		if (again) {
+			mTimeoutHandler.postDelayed(mRetry, delay);
+		} else {
+			setState(IConnection.connectionStateEnum.isToScan);
+			mConnected.done();
+		}
+	}
+
+	/* connect with retries - the outcome is reported through awaitConnected() */
+	public void startConnect() {
+		startConnect(MAX_RETRIES, LINK_TIMEOUT_MS);
+	}
+
+	/* connect with the given number of retries and link timeout */
+	public void startConnect(int retries, long linkTimeoutMs) {
+		synchronized (mPhaseLock) {
+			mAttempt = 0;
+			mMaxRetries = retries;
+			mLinkTimeout = linkTimeoutMs;
+		}
+		mConnected.start();
+		attemptConnect();
+	}
+
+	private void attemptConnect() {
+		if (move(connectPhase.LINK_CONNECT) == null)
+			return;
+		setState(IConnection.connectionStateEnum.isConnecting);
+		if (connect() != 0)
+			fail("unable to connect", true);
+	}
+
+	/* an established link dropped - release anything waiting on it and reconnect in the
+	 * background, giving up after the usual retries */
+	protected void linkLost(String reason) {
+		synchronized (mPhaseLock) {
+			if (mPhase != connectPhase.READY)
+				return;
+			mAttempt = 0;
+			mMaxRetries = MAX_RETRIES;
+			mLinkTimeout = LINK_TIMEOUT_MS;
+			move(connectPhase.FAILED);
+		}
+		Log.w(TAG, this + ": link lost: " + reason + " - reconnecting");
+		onLinkLost();
+		abortConnect();
+		mConnected.start();
+		setState(IConnection.connectionStateEnum.isConnecting);
+		mTimeoutHandler.postDelayed(mRetry, RETRY_BACKOFF_MS);
+	}
+
+	/* the link dropped - subclasses fail whatever was outstanding on it */
+	protected void onLinkLost() {
+	}
+
+	/* abandon connecting - used when disconnecting */
+	protected void stopConnect() {
+		mTimeoutHandler.removeCallbacks(mRetry);
+		setPhase(connectPhase.IDLE);
+	}
+
+	/* block until connected or connecting has been given up - returns true if connected */
+	public boolean awaitConnected(long timeoutMs) {
+		mConnected.await(timeoutMs);
+		return getPhase() == connectPhase.READY;
+	}
+
 	public String getAddress() {
 		return mDeviceAddress;
 	}
@@ -72,6 +303,23 @@ public abstract class Robot {
 		return mDeviceName;
 	}
 
+	/* printable form of serial data for logging - non-printable bytes shown in hex */
+	static String toPrintable(byte[] data, int offset, int length) {
+		StringBuilder str = new StringBuilder(length);
+		for (int i = offset; i < offset + length; i++) {
+			int b = data[i] & 0xff;
+			if (b >= 0x20 && b < 0x7f)
+				str.append((char) b);
+			else if (b == '\r')
+				str.append("\\r");
+			else if (b == '\n')
+				str.append("\\n");
+			else
+				str.append(String.format("\\x%02x", b));
+		}
+		return str.toString();
+	}
+
 	public String toString() {
 		return mDeviceName + ":" + mDeviceAddress;
 	}
@@ -36,17 +36,20 @@ public class RobotControlActivity extends AppCompatActivity implements IConnecti
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_robot_control);
-		mRobot = Mobbob.getMobob();
+		mRobot = RobotRegistry.getActiveMobbob();
 		if (mRobot != null) {
 			mRobot.setConnectionListener(this);
 			updateStatus();
+		} else if (savedInstanceState == null) {
+			/* Reattach to the last robot on startup */
+			DiscoverySelector.reconnect(this, this);
 		}
 	}
 
 	@Override
 	public void connectionStateChanged(IConnection.connectionStateEnum state) {
 		Log.i(TAG, "connection state changed:" + state);
-		mRobot = Mobbob.getMobob();
+		mRobot = RobotRegistry.getActiveMobbob();
 		updateStatus();
 	}
 
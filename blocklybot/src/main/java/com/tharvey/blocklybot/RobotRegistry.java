@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 Tim Harvey <harvey.tim@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tharvey.blocklybot;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Registry of robots keyed by device address
+ *
+ * Robots register themselves when created and are removed when disconnected. One robot is
+ * active - the one scripts and the remote control drive - which is the most recently
+ * registered unless selected with setActive().
+ */
+public class RobotRegistry {
+	private final static String TAG = RobotRegistry.class.getSimpleName();
+
+	private final static LinkedHashMap<String, Robot> mRobots = new LinkedHashMap<String, Robot>();
+	private static String mActive;
+
+	static synchronized void register(Robot robot) {
+		Log.i(TAG, "register " + robot);
+		mRobots.remove(robot.getAddress());
+		mRobots.put(robot.getAddress(), robot);
+		mActive = robot.getAddress();
+	}
+
+	static synchronized void unregister(Robot robot) {
+		if (mRobots.get(robot.getAddress()) != robot)
+			return;
+		Log.i(TAG, "unregister " + robot);
+		mRobots.remove(robot.getAddress());
+		if (robot.getAddress().equals(mActive)) {
+			mActive = null;
+			for (String address : mRobots.keySet())
+				mActive = address;
+		}
+	}
+
+	static synchronized Robot get(String address) {
+		return mRobots.get(address);
+	}
+
+	static synchronized List<Robot> getRobots() {
+		return new ArrayList<Robot>(mRobots.values());
+	}
+
+	static synchronized boolean setActive(String address) {
+		if (!mRobots.containsKey(address))
+			return false;
+		mActive = address;
+		return true;
+	}
+
+	static synchronized Robot getActive() {
+		return (mActive != null) ? mRobots.get(mActive) : null;
+	}
+
+	static Mobbob getActiveMobbob() {
+		Robot robot = getActive();
+		return (robot instanceof Mobbob) ? (Mobbob) robot : null;
+	}
+
+	/* disconnect every robot */
+	static void disconnectAll() {
+		for (Robot robot : getRobots())
+			robot.disconnect();
+	}
+}
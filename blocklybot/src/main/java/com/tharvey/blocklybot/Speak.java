@@ -29,6 +29,7 @@ public class Speak implements IFunction {
 
 	TextToSpeech mTTS;
 	String mSpeaking;
+	private final Completion mCompletion = new Completion();
 
 	public Speak(Activity context) {
 		mSpeaking = null;
@@ -44,11 +45,14 @@ public class Speak implements IFunction {
 							Log.i(TAG, "TTS complete '" + mSpeaking + "'");
 							mTTS.stop();
 							mSpeaking = null;
+							mCompletion.done();
 						}
 
 						@Override
 						public void onError(String utteranceId) {
 							Log.e(TAG, "TTS error");
+							mSpeaking = null;
+							mCompletion.done();
 						}
 
 						@Override
@@ -71,11 +75,16 @@ public class Speak implements IFunction {
 		return (mSpeaking != null);
 	}
 
+	public boolean waitComplete(long timeoutMs) {
+		return mCompletion.await(timeoutMs);
+	}
+
 	public boolean doFunction(String txt, int p2, int p3) {
 		Log.i(TAG, "Speaking '" + txt + "'");
 		HashMap<String, String> params = new HashMap<String, String>();
 		params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, "utteranceId");
 		mSpeaking = txt;
+		mCompletion.start();
 		mTTS.speak(txt, TextToSpeech.QUEUE_ADD, params);
 		return true;
 	}
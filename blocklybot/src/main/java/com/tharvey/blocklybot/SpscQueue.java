@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016 Tim Harvey <harvey.tim@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tharvey.blocklybot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer/single-consumer queue
+ *
+ * A lock-free ring: only one thread at a time may call offer() and only one thread at a
+ * time may call peek()/poll()/clear(). Callers with more than one producer or consumer
+ * must serialize each side themselves. offer() never overwrites, it fails when full.
+ */
+public class SpscQueue<T> {
+	private final Object[] mBuffer;
+	private final int mMask;
+	/* next slot to read - written only by the consumer */
+	private final AtomicLong mHead = new AtomicLong(0);
+	/* next slot to write - written only by the producer */
+	private final AtomicLong mTail = new AtomicLong(0);
+
+	/* capacity is rounded up to a power of 2 */
+	public SpscQueue(int capacity) {
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+		mBuffer = new Object[size];
+		mMask = size - 1;
+	}
+
+	public int capacity() {
+		return mBuffer.length;
+	}
+
+	public int size() {
+		return (int) (mTail.get() - mHead.get());
+	}
+
+	public boolean isEmpty() {
+		return mTail.get() == mHead.get();
+	}
+
+	public boolean isFull() {
+		return size() >= mBuffer.length;
+	}
+
+	/* producer: add an item - returns false if the queue is full */
+	public boolean offer(T item) {
+		long tail = mTail.get();
+		if (tail - mHead.get() >= mBuffer.length)
+			return false;
+		mBuffer[(int) tail & mMask] = item;
+		mTail.lazySet(tail + 1);
+		return true;
+	}
+
+	/* consumer: the oldest item without removing it or null if empty */
+	@SuppressWarnings("unchecked")
+	public T peek() {
+		long head = mHead.get();
+		if (head == mTail.get())
+			return null;
+		return (T) mBuffer[(int) head & mMask];
+	}
+
+	/* consumer: remove and return the oldest item or null if empty */
+	@SuppressWarnings("unchecked")
+	public T poll() {
+		long head = mHead.get();
+		if (head == mTail.get())
+			return null;
+		int index = (int) head & mMask;
+		T item = (T) mBuffer[index];
+		mBuffer[index] = null;
+		mHead.lazySet(head + 1);
+		return item;
+	}
+
+	/* consumer: discard everything queued, returns the number of items discarded */
+	public int clear() {
+		int n = 0;
+		while (poll() != null)
+			n++;
+		return n;
+	}
+}
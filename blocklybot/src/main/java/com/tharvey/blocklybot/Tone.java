@@ -28,6 +28,7 @@ public class Tone implements IFunction {
 	private final static String TAG = Tone.class.getSimpleName();
 
 	static private boolean mPlaying;
+	private final Completion mCompletion = new Completion();
 
 	public boolean doFunction(String p1, int freqHz, int durationMs) {
 		Log.i(TAG, "Tone: " + freqHz + "Hz " + durationMs + "ms");
@@ -41,9 +42,11 @@ public class Tone implements IFunction {
 			public void onMarkerReached(AudioTrack track) {
 				mPlaying = false;
 				track.release();
+				mCompletion.done();
 			}
 		});
 		mPlaying = true;
+		mCompletion.start();
 		tone.play();
 		return true;
 	}
@@ -52,6 +55,10 @@ public class Tone implements IFunction {
 		return mPlaying;
 	}
 
+	public boolean waitComplete(long timeoutMs) {
+		return mCompletion.await(timeoutMs);
+	}
+
 	static private AudioTrack generateTone(double freqHz, int durationMs) {
 		int count = (int) (44100.0 * 2.0 * (durationMs / 1000.0)) & ~1;
 		short[] samples = new short[count];